@@ -56,6 +56,9 @@ public class MainActivity extends FragmentActivity {
 
         setContentView(R.layout.mainactivity);
 
+        // Registry generated by tabstacker-compiler for the @TabStackFragment Fragments
+        TabStacker.setFragmentRegistry(new TabStackFragmentRegistry());
+
         // Creates the TabStacker
         mTabStacker = new TabStacker(getSupportFragmentManager(), R.id.fragmentHolder);
 
@@ -27,6 +27,7 @@ import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import fr.arnaudguyon.tabstacker.TabStackFragment;
 import fr.arnaudguyon.tabstacker.TabStacker;
 
 /**
@@ -36,6 +37,7 @@ import fr.arnaudguyon.tabstacker.TabStacker;
  * The title is displayed at a random place
  */
 
+@TabStackFragment(id = 1)
 public class TabFragment extends Fragment implements TabStacker.TabStackInterface {
 
     private static final String TAG = "TabFragment";
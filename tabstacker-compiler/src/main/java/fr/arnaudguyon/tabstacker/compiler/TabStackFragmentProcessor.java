@@ -0,0 +1,210 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates the TabStackFragmentRegistry class for the Fragments annotated with TabStackFragment.
+ * The registry is generated in the package of the first annotated Fragment,
+ * or in the package given with the annotation processor option "tabStackerRegistryPackage".
+ */
+
+public class TabStackFragmentProcessor extends AbstractProcessor {
+
+    private static final String ANNOTATION = "fr.arnaudguyon.tabstacker.TabStackFragment";
+    private static final String FRAGMENT = "android.support.v4.app.Fragment";
+    private static final String OPTION_PACKAGE = "tabStackerRegistryPackage";
+    private static final String REGISTRY_NAME = "TabStackFragmentRegistry";
+
+    private final TreeMap<Integer, String> mFragments = new TreeMap<>();
+    private String mPackageName;
+    private boolean mGenerated;
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(ANNOTATION);
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(OPTION_PACKAGE);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement annotation = processingEnv.getElementUtils().getTypeElement(ANNOTATION);
+        if (annotation != null) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (mGenerated) {
+                    error(element, "@TabStackFragment class generated after " + REGISTRY_NAME);
+                } else {
+                    addFragment(element);
+                }
+            }
+        }
+        // Generated in the round which finds the annotated classes: javac only runs another round if sources
+        // are generated, and sources created in the final round are not compiled without a warning
+        if (!roundEnv.processingOver() && !mGenerated && !mFragments.isEmpty()) {
+            mGenerated = true;
+            generateRegistry();
+        }
+        return true;
+    }
+
+    private void addFragment(Element element) {
+        if (element.getKind() != ElementKind.CLASS) {
+            error(element, "@TabStackFragment can only be used on classes");
+            return;
+        }
+        TypeElement typeElement = (TypeElement) element;
+        Set<Modifier> modifiers = typeElement.getModifiers();
+        if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.ABSTRACT)) {
+            error(element, "@TabStackFragment classes must be public and not abstract");
+            return;
+        }
+        if (typeElement.getNestingKind().isNested() && !modifiers.contains(Modifier.STATIC)) {
+            error(element, "@TabStackFragment inner classes must be static");
+            return;
+        }
+        if (!hasPublicEmptyConstructor(typeElement)) {
+            error(element, "@TabStackFragment classes must have a public empty constructor");
+            return;
+        }
+        TypeElement fragment = processingEnv.getElementUtils().getTypeElement(FRAGMENT);
+        if ((fragment != null) && !processingEnv.getTypeUtils().isAssignable(typeElement.asType(), fragment.asType())) {
+            error(element, "@TabStackFragment classes must extend " + FRAGMENT);
+            return;
+        }
+
+        int id = getId(typeElement);
+        if (id <= 0) {
+            error(element, "@TabStackFragment id must be greater than 0");
+            return;
+        }
+        String className = typeElement.getQualifiedName().toString();
+        String previous = mFragments.get(id);
+        if (previous != null) {
+            error(element, "@TabStackFragment id " + id + " is already used by " + previous);
+            return;
+        }
+        mFragments.put(id, className);
+
+        if (mPackageName == null) {
+            String option = processingEnv.getOptions().get(OPTION_PACKAGE);
+            mPackageName = (option != null) ? option : processingEnv.getElementUtils().getPackageOf(typeElement).getQualifiedName().toString();
+        }
+    }
+
+    private static boolean hasPublicEmptyConstructor(TypeElement typeElement) {
+        for (Element enclosed : typeElement.getEnclosedElements()) {
+            if (enclosed.getKind() == ElementKind.CONSTRUCTOR) {
+                ExecutableElement constructor = (ExecutableElement) enclosed;
+                if (constructor.getParameters().isEmpty() && constructor.getModifiers().contains(Modifier.PUBLIC)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int getId(TypeElement typeElement) {
+        for (AnnotationMirror mirror : typeElement.getAnnotationMirrors()) {
+            TypeMirror type = mirror.getAnnotationType();
+            if (type.toString().equals(ANNOTATION)) {
+                for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+                    if (entry.getKey().getSimpleName().contentEquals("id")) {
+                        return (Integer) entry.getValue().getValue();
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    private void generateRegistry() {
+        StringBuilder builder = new StringBuilder();
+        if (!mPackageName.isEmpty()) {
+            builder.append("package ").append(mPackageName).append(";\n\n");
+        }
+        builder.append("import android.support.v4.app.Fragment;\n\n");
+        builder.append("import fr.arnaudguyon.tabstacker.FragmentRegistry;\n\n");
+        builder.append("/**\n * Generated by tabstacker-compiler, do not edit.\n */\n");
+        builder.append("public final class ").append(REGISTRY_NAME).append(" implements FragmentRegistry {\n\n");
+
+        builder.append("    @Override\n    public Fragment createFragment(int fragmentId) {\n        switch (fragmentId) {\n");
+        for (Map.Entry<Integer, String> entry : mFragments.entrySet()) {
+            builder.append("            case ").append(entry.getKey()).append(":\n");
+            builder.append("                return new ").append(entry.getValue()).append("();\n");
+        }
+        builder.append("            default:\n                return null;\n        }\n    }\n\n");
+
+        builder.append("    @Override\n    public Class<? extends Fragment> getFragmentClass(int fragmentId) {\n        switch (fragmentId) {\n");
+        for (Map.Entry<Integer, String> entry : mFragments.entrySet()) {
+            builder.append("            case ").append(entry.getKey()).append(":\n");
+            builder.append("                return ").append(entry.getValue()).append(".class;\n");
+        }
+        builder.append("            default:\n                return null;\n        }\n    }\n\n");
+
+        builder.append("    @Override\n    public int getFragmentId(Class<? extends Fragment> fragmentClass) {\n");
+        for (Map.Entry<Integer, String> entry : mFragments.entrySet()) {
+            builder.append("        if (fragmentClass == ").append(entry.getValue()).append(".class) {\n");
+            builder.append("            return ").append(entry.getKey()).append(";\n        }\n");
+        }
+        builder.append("        return NO_ID;\n    }\n}\n");
+
+        String fileName = mPackageName.isEmpty() ? REGISTRY_NAME : mPackageName + "." + REGISTRY_NAME;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(fileName);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(builder.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Unable to generate " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
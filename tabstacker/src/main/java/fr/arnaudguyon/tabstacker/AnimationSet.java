@@ -24,10 +24,10 @@ import android.support.v4.app.FragmentTransaction;
  */
 
 public class AnimationSet {
-    private int mPushInAnim;
-    private int mPushOutAnim;
-    private int mPopInAnim;
-    private int mPopOutAnim;
+    private final int mPushInAnim;
+    private final int mPushOutAnim;
+    private final int mPopInAnim;
+    private final int mPopOutAnim;
 
     public AnimationSet(@AnimRes int pushInAnim, @AnimRes int pushOutAnim, @AnimRes int popInAnim, @AnimRes int popOutAnim) {
         mPushInAnim = pushInAnim;
@@ -43,6 +43,8 @@ public class AnimationSet {
             } else {
                 transaction.setCustomAnimations(mPushInAnim, mPushOutAnim);
             }
+        } else {
+            transaction.setCustomAnimations(0, 0, 0, 0);
         }
     }
 
@@ -62,23 +64,54 @@ public class AnimationSet {
         return mPushOutAnim;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof AnimationSet)) {
+            return false;
+        }
+        AnimationSet otherSet = (AnimationSet) other;
+        return (mPushInAnim == otherSet.mPushInAnim) && (mPushOutAnim == otherSet.mPushOutAnim)
+                && (mPopInAnim == otherSet.mPopInAnim) && (mPopOutAnim == otherSet.mPopOutAnim);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = mPushInAnim;
+        hash = 31 * hash + mPushOutAnim;
+        hash = 31 * hash + mPopInAnim;
+        hash = 31 * hash + mPopOutAnim;
+        return hash;
+    }
+
 
     // *** SAVE / RESTORE ***
 
+    // Keys of the previous Bundle format, kept to read old saved states
     private static final String BUNDLE_PUSH_IN = "pushin";
     private static final String BUNDLE_PUSH_OUT = "pushout";
     private static final String BUNDLE_POP_IN = "popin";
     private static final String BUNDLE_POP_OUT = "popout";
 
-    Bundle saveInstance() {
-        Bundle bundle = new Bundle();
-        bundle.putInt(BUNDLE_PUSH_IN, mPushInAnim);
-        bundle.putInt(BUNDLE_PUSH_OUT, mPushOutAnim);
-        bundle.putInt(BUNDLE_POP_IN, mPopInAnim);
-        bundle.putInt(BUNDLE_POP_OUT, mPopOutAnim);
-        return bundle;
+    /**
+     * @return the 4 animations, in the order of the constructor
+     */
+    int[] toArray() {
+        return new int[] { mPushInAnim, mPushOutAnim, mPopInAnim, mPopOutAnim };
+    }
+
+    /**
+     * @param animations the 4 animations given by toArray()
+     */
+    static AnimationSet fromArray(int[] animations) {
+        return new AnimationSet(animations[0], animations[1], animations[2], animations[3]);
     }
 
+    /**
+     * Reads an AnimationSet saved in a Bundle by the previous versions of TabStacker
+     */
     static AnimationSet restoreInstance (Bundle bundle) {
         if (bundle != null) {
             int pushInAnim = bundle.getInt(BUNDLE_PUSH_IN);
@@ -16,9 +16,14 @@
 package fr.arnaudguyon.tabstacker;
 
 import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.support.v4.app.Fragment;
+import android.util.SparseArray;
 import android.view.View;
 
+import java.util.IdentityHashMap;
+
 /**
  * Fragment information that is stacked by the TabStacker.
  * It is used to store the animations to play, and also the View hierarchy
@@ -26,17 +31,51 @@ import android.view.View;
 
 class FragmentInfo {
 
+    // Keys of the previous Bundle format, kept to read old saved states, and of the spilled payloads
     private static final String BUNDLE_FRAGMENT_CLASS = "fragment_class";
+    private static final String BUNDLE_FRAGMENT_ID = "fragment_id";
     private static final String BUNDLE_FRAGMENT_ARGUMENTS = "fragment_arguments";
     private static final String BUNDLE_FRAGMENT_DATA = "fragment_data";
     private static final String BUNDLE_VIEW_HIERARCHY = "ViewHierarchy";
     private static final String BUNDLE_TYPE = "type";
     private static final String BUNDLE_ANIMATION = "animation";
+    private static final String BUNDLE_SPILL_KEY = "spill";
+    private static final String BUNDLE_VIEW_IDS = "view_ids";
+
+    // Flags of the binary format, see saveInstance()
+    private static final int FLAG_ADD = 1;
+    private static final int FLAG_FRAGMENT_ID = 1 << 1;
+    private static final int FLAG_ANIMATION = 1 << 2;            // animations written inline, by the first binary format
+    private static final int FLAG_SPILLED = 1 << 3;
+    private static final int FLAG_SHARED_ANIMATION = 1 << 4;     // index of the animations in the SharedTable
+    private static final int FLAG_SHARED_ARGUMENTS = 1 << 5;     // index of the Arguments in the SharedTable, -1 for none
 
-    Fragment mFragment;
+    Fragment mFragment;         // null until the Fragment is needed, see getFragment()
     AnimationSet mAnimationSet;
     TabStacker.Type mType;
-    private Bundle mSavedView;
+    State mState = State.REMOVED;
+    private SparseArray<Parcelable> mSavedView;
+    private IdentityHashMap<Fragment, FragmentInfo> mFragmentIndex;    // of the TabStacker, null if not in a stack
+    private Bundle mKeptData;       // Dynamic Data kept while the Fragment is dismissed, null if it may change
+
+    // Descriptor of the Fragment while it is not instantiated
+    private String mClassName;
+    private Class<? extends Fragment> mFragmentClass;  // null if only the class name is known
+    private int mFragmentId = FragmentRegistry.NO_ID;
+    private Bundle mArguments;
+    private Bundle mFragmentData;
+    private String mSpillKey;           // Arguments, Dynamic Data and View Hierarchy are in the SpillStore until needed
+    private SpillStore mSpillStore;
+
+    /**
+     * Where the Fragment stands in the FragmentManager
+     */
+    enum State {
+        REMOVED,    // not in the FragmentManager
+        ADDED,      // added and visible
+        DETACHED,   // still in the FragmentManager but detached (no View)
+        HIDDEN      // still in the FragmentManager but hidden (View kept)
+    }
 
     FragmentInfo(Fragment fragment, AnimationSet animationSet, TabStacker.Type type) {
         mFragment = fragment;
@@ -44,84 +83,498 @@ class FragmentInfo {
         mType = type;
     }
 
-    static FragmentInfo restoreInstance(Bundle bundle) {
+    /**
+     * Creates a FragmentInfo without instantiating its Fragment
+     * @param className Name of the Fragment class
+     * @param arguments Optional arguments of the Fragment
+     * @param fragmentData Optional data given to onRestoreTabFragmentInstance() once the Fragment is instantiated
+     */
+    FragmentInfo(String className, Bundle arguments, Bundle fragmentData, AnimationSet animationSet, TabStacker.Type type) {
+        mClassName = className;
+        mArguments = arguments;
+        mFragmentData = fragmentData;
+        mAnimationSet = animationSet;
+        mType = type;
+    }
 
-        String className = bundle.getString(BUNDLE_FRAGMENT_CLASS);
-        Fragment fragment;
+    /**
+     * Creates a FragmentInfo without instantiating its Fragment, keeping its class to save it by registry id
+     * @param fragmentClass Class of the Fragment
+     * @param arguments Optional arguments of the Fragment
+     */
+    FragmentInfo(Class<? extends Fragment> fragmentClass, Bundle arguments, AnimationSet animationSet, TabStacker.Type type) {
+        this(fragmentClass.getName(), arguments, null, animationSet, type);
+        mFragmentClass = fragmentClass;
+    }
+
+    /**
+     * Creates a Fragment from its class name
+     * @param className Name of the Fragment class
+     * @param arguments Optional arguments of the Fragment
+     * @return the new Fragment
+     */
+    static Fragment instantiate(String className, Bundle arguments) {
         try {
-            // Class
             Class<Fragment> fragmentClass = (Class<Fragment>) Class.forName(className);
-            fragment = fragmentClass.newInstance();
-
-            // Arguments
-            Bundle arguments = bundle.getBundle(BUNDLE_FRAGMENT_ARGUMENTS);
+            Fragment fragment = fragmentClass.newInstance();
             fragment.setArguments(arguments);
+            return fragment;
+        } catch (ClassNotFoundException e1) {
+            throw new RuntimeException("Unable to instantiate " + className, e1);
+        } catch (InstantiationException e2) {
+            throw new RuntimeException("Unable to instantiate " + className, e2);
+        } catch (IllegalAccessException e3) {
+            throw new RuntimeException("Unable to instantiate " + className, e3);
+        }
+    }
 
-            // Dynamic Data
-            Bundle fragmentData = bundle.getBundle(BUNDLE_FRAGMENT_DATA);
-            if ((fragmentData != null) && (fragment instanceof TabStacker.TabStackInterface)) {
-                ((TabStacker.TabStackInterface) fragment).onRestoreTabFragmentInstance(fragmentData);
+    /**
+     * Creates a Fragment with the FragmentRegistry if its id is registered, else from its class name
+     * @param fragmentId id of the Fragment class in the FragmentRegistry, or NO_ID
+     * @param className Name of the Fragment class, may be null if the id is registered
+     * @param arguments Optional arguments of the Fragment
+     * @return the new Fragment
+     */
+    static Fragment instantiate(int fragmentId, String className, Bundle arguments) {
+        FragmentRegistry registry = TabStacker.sFragmentRegistry;
+        if ((fragmentId != FragmentRegistry.NO_ID) && (registry != null)) {
+            Fragment fragment = registry.createFragment(fragmentId);
+            if (fragment != null) {
+                fragment.setArguments(arguments);
+                return fragment;
             }
+        }
+        if (className == null) {
+            throw new RuntimeException("Unable to instantiate Fragment with id " + fragmentId + ", is the FragmentRegistry set?");
+        }
+        return instantiate(className, arguments);
+    }
 
-            // Type of push
-            TabStacker.Type type = TabStacker.Type.valueOf(bundle.getString(BUNDLE_TYPE));
+    /**
+     * @return the Fragment, instantiated and restored the first time it is needed
+     */
+    Fragment getFragment() {
+        if (mFragment == null) {
+            loadSpilled();
+            Fragment fragment = instantiate(mFragmentId, mClassName, mArguments);
+            if ((mFragmentData != null) && (fragment instanceof TabStacker.TabStackInterface)) {
+                ((TabStacker.TabStackInterface) fragment).onRestoreTabFragmentInstance(mFragmentData);
+            }
+            mFragment = fragment;
+            if (mFragmentIndex != null) {
+                mFragmentIndex.put(fragment, this);
+            }
+            mClassName = null;
+            mFragmentClass = null;
+            mFragmentId = FragmentRegistry.NO_ID;
+            mArguments = null;
+            mFragmentData = null;
+        }
+        return mFragment;
+    }
 
-            // Animations
-            Bundle animation = bundle.getBundle(BUNDLE_ANIMATION);
-            AnimationSet animationSet = AnimationSet.restoreInstance(animation);
+    /**
+     * Sets the index where the FragmentInfo registers its Fragment, now or once it is instantiated
+     * @param fragmentIndex the index of the TabStacker, or null when the FragmentInfo leaves the stacks
+     */
+    void setFragmentIndex(IdentityHashMap<Fragment, FragmentInfo> fragmentIndex) {
+        removeFromIndex();
+        mFragmentIndex = fragmentIndex;
+        if ((fragmentIndex != null) && (mFragment != null)) {
+            fragmentIndex.put(mFragment, this);
+        }
+    }
 
-            FragmentInfo fragmentInfo = new FragmentInfo(fragment, animationSet, type);
+    private void removeFromIndex() {
+        if ((mFragmentIndex != null) && (mFragment != null) && (mFragmentIndex.get(mFragment) == this)) {
+            mFragmentIndex.remove(mFragment);
+        }
+    }
 
-            // View Hierarchy
-            fragmentInfo.mSavedView = bundle.getBundle(BUNDLE_VIEW_HIERARCHY);
+    /**
+     * @return true if the Fragment has been instantiated
+     */
+    boolean isInstantiated() {
+        return (mFragment != null);
+    }
 
-            return fragmentInfo;
+    String getClassName() {
+        if (mFragment != null) {
+            return mFragment.getClass().getName();
+        } else if (mClassName != null) {
+            return mClassName;
+        }
+        FragmentRegistry registry = TabStacker.sFragmentRegistry;
+        Class<? extends Fragment> fragmentClass = (registry != null) ? registry.getFragmentClass(mFragmentId) : null;
+        return (fragmentClass != null) ? fragmentClass.getName() : null;
+    }
 
-        } catch (ClassNotFoundException e1) {
-            e1.printStackTrace();
-        } catch (InstantiationException e2) {
-            e2.printStackTrace();
-        } catch (IllegalAccessException e3) {
-            e3.printStackTrace();
+    /**
+     * @return the id of the Fragment class in the FragmentRegistry, or NO_ID if it is not registered
+     */
+    private int getFragmentId() {
+        FragmentRegistry registry = TabStacker.sFragmentRegistry;
+        if (registry != null) {
+            if (mFragment != null) {
+                return registry.getFragmentId(mFragment.getClass());
+            } else if ((mFragmentId == FragmentRegistry.NO_ID) && (mFragmentClass != null)) {
+                mFragmentId = registry.getFragmentId(mFragmentClass);
+            }
         }
-        return null;
+        return mFragmentId;
     }
 
-    Bundle saveInstance() {
-        Bundle bundle = new Bundle();
+    Bundle getArguments() {
+        if (mFragment != null) {
+            return mFragment.getArguments();
+        }
+        loadSpilled();
+        return mArguments;
+    }
+
+    /**
+     * Reads the Arguments, Dynamic Data and View Hierarchy from the SpillStore if they have been spilled
+     */
+    private void loadSpilled() {
+        if (mSpillKey == null) {
+            return;
+        }
+        Bundle payload = mSpillStore.read(mSpillKey);
+        if (payload != null) {
+            if (payload.containsKey(BUNDLE_FRAGMENT_ARGUMENTS)) {
+                mArguments = payload.getBundle(BUNDLE_FRAGMENT_ARGUMENTS);  // spilled when the SharedTable was too big
+            }
+            mFragmentData = payload.getBundle(BUNDLE_FRAGMENT_DATA);
+            mSavedView = payload.getSparseParcelableArray(BUNDLE_VIEW_IDS);
+            if (mSavedView == null) {
+                mSavedView = ViewData.fromBundle(payload.getBundle(BUNDLE_VIEW_HIERARCHY));  // spilled by a previous version
+            }
+        }
+        mSpillKey = null;
+        mSpillStore = null;
+    }
 
-        // Class
-        String fragmentClassName = mFragment.getClass().getName();
-        bundle.putString(BUNDLE_FRAGMENT_CLASS, fragmentClassName);
+    /**
+     * Moves the Dynamic Data and View Hierarchy of a saved FragmentInfo to the SpillStore,
+     * and its Arguments too if asked, releasing them in the SharedTable.
+     * Data which was already spilled is moved to the new spilled file.
+     * @param data the bytes given by saveInstance() or spill()
+     * @param spillArguments true to spill the Arguments, else they stay in the SharedTable
+     * @return a lighter copy of the bytes that references the spilled data, or null if it could not be spilled
+     */
+    static byte[] spill(byte[] data, SpillStore spillStore, SharedTable sharedTable, boolean spillArguments) {
+        int argumentsIndex = getArgumentsIndex(data);
+        FragmentInfo fragmentInfo = unmarshall(data, sharedTable);
+        if (fragmentInfo.mSpillKey != null) {
+            fragmentInfo.mSpillStore = spillStore;
+            fragmentInfo.loadSpilled();
+        }
+        Bundle payload = new Bundle();
+        if (spillArguments) {
+            payload.putBundle(BUNDLE_FRAGMENT_ARGUMENTS, fragmentInfo.mArguments);
+        }
+        payload.putBundle(BUNDLE_FRAGMENT_DATA, fragmentInfo.mFragmentData);
+        payload.putSparseParcelableArray(BUNDLE_VIEW_IDS, fragmentInfo.mSavedView);
+        String spillKey = spillStore.write(payload);
+        if (spillKey == null) {
+            return null;
+        }
+        fragmentInfo.mSpillKey = spillKey;
+        byte[] spilledData = fragmentInfo.marshall(spillArguments ? null : fragmentInfo.mArguments, null, null, sharedTable);
+        if (argumentsIndex >= 0) {
+            sharedTable.release(argumentsIndex);    // after marshall(), which references the kept Arguments again
+        }
+        return spilledData;
+    }
 
-        // Arguments
-        Bundle fragmentArguments = mFragment.getArguments();
-        bundle.putBundle(BUNDLE_FRAGMENT_ARGUMENTS, fragmentArguments);
+    /**
+     * @return the key of the spilled data, or null if nothing is spilled or if it has been read back
+     */
+    String getSpillKey() {
+        return mSpillKey;
+    }
 
-        // Dynamic data
-        if (mFragment instanceof TabStacker.TabStackInterface) {
-            Bundle fragmentData = new Bundle();
-            View fragmentView = ((TabStacker.TabStackInterface) mFragment).onSaveTabFragmentInstance(fragmentData);
-            bundle.putBundle(BUNDLE_FRAGMENT_DATA, fragmentData);
+    /**
+     * Only reads the header of the bytes: the Arguments, Dynamic Data and View Hierarchy are not unmarshalled
+     * @param data the bytes given by saveInstance() or spill()
+     * @return the key of the spilled data, or null if nothing is spilled
+     */
+    static String getSpillKey(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            int flags = parcel.readInt();
+            if ((flags & FLAG_SPILLED) == 0) {
+                return null;
+            }
+            skipToArguments(parcel, flags);
+            if ((flags & FLAG_SHARED_ARGUMENTS) != 0) {
+                parcel.readInt();
+            }
+            return parcel.readString();     // spilled entries have no inline Arguments
+        } finally {
+            parcel.recycle();
+        }
+    }
 
-            // View Hierarchy
-            if (fragmentView != null) {
-                Bundle viewHierarchy = ViewData.saveViewHierarchy(fragmentView);
-                bundle.putBundle(BUNDLE_VIEW_HIERARCHY, viewHierarchy);
-            } else if (mSavedView != null) {
-                bundle.putBundle(BUNDLE_VIEW_HIERARCHY, mSavedView);
+    /**
+     * Only reads the header of the bytes, like getSpillKey()
+     * @param data the bytes given by saveInstance() or spill()
+     * @return the index of the Arguments in the SharedTable, or -1 if there are none or if they are inline
+     */
+    static int getArgumentsIndex(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            int flags = parcel.readInt();
+            if ((flags & FLAG_SHARED_ARGUMENTS) == 0) {
+                return -1;
             }
+            skipToArguments(parcel, flags);
+            return parcel.readInt();
+        } finally {
+            parcel.recycle();
         }
+    }
+
+    private static void skipToArguments(Parcel parcel, int flags) {
+        if ((flags & FLAG_FRAGMENT_ID) != 0) {
+            parcel.readInt();
+        } else {
+            parcel.readString();
+        }
+        if ((flags & FLAG_SHARED_ANIMATION) != 0) {
+            parcel.readInt();
+        } else if ((flags & FLAG_ANIMATION) != 0) {
+            parcel.createIntArray();
+        }
+    }
+
+    /**
+     * Restores a FragmentInfo saved in a Bundle by the previous versions of TabStacker
+     * @param spillStore where the spilled data can be read, null if there is none
+     */
+    static FragmentInfo restoreInstance(Bundle bundle, SpillStore spillStore) {
+
+        // Class, Arguments and Dynamic Data, the Fragment is only instantiated when it is needed
+        String className = bundle.getString(BUNDLE_FRAGMENT_CLASS);
+        int fragmentId = bundle.getInt(BUNDLE_FRAGMENT_ID, FragmentRegistry.NO_ID);
+        Bundle arguments = bundle.getBundle(BUNDLE_FRAGMENT_ARGUMENTS);
+        Bundle fragmentData = bundle.getBundle(BUNDLE_FRAGMENT_DATA);
 
         // Type of push
-        String type = mType.name();
-        bundle.putString(BUNDLE_TYPE, type);
+        TabStacker.Type type = TabStacker.Type.valueOf(bundle.getString(BUNDLE_TYPE));
 
         // Animations
-        Bundle animation = (mAnimationSet != null) ? mAnimationSet.saveInstance() : null;
-        bundle.putBundle(BUNDLE_ANIMATION, animation);
+        Bundle animation = bundle.getBundle(BUNDLE_ANIMATION);
+        AnimationSet animationSet = AnimationSet.restoreInstance(animation);
+
+        FragmentInfo fragmentInfo = new FragmentInfo(className, arguments, fragmentData, animationSet, type);
+        fragmentInfo.mFragmentId = fragmentId;
+
+        // View Hierarchy
+        fragmentInfo.mSavedView = ViewData.fromBundle(bundle.getBundle(BUNDLE_VIEW_HIERARCHY));
+
+        // Spilled data, read when needed
+        String spillKey = bundle.getString(BUNDLE_SPILL_KEY);
+        if ((spillKey != null) && (spillStore != null)) {
+            fragmentInfo.mSpillKey = spillKey;
+            fragmentInfo.mSpillStore = spillStore;
+        }
+
+        return fragmentInfo;
+    }
+
+    /**
+     * @param data the bytes given by saveInstance() or spill()
+     * @param spillStore where the spilled data can be read, null if there is none
+     * @param sharedTable the table given to saveInstance(), or one which starts with it
+     */
+    static FragmentInfo restoreInstance(byte[] data, SpillStore spillStore, SharedTable sharedTable) {
+        FragmentInfo fragmentInfo = unmarshall(data, sharedTable);
+        if (fragmentInfo.mSpillKey != null) {
+            if (spillStore != null) {
+                fragmentInfo.mSpillStore = spillStore;
+            } else {
+                fragmentInfo.mSpillKey = null;
+            }
+        }
+        return fragmentInfo;
+    }
+
+    /**
+     * Saves the FragmentInfo in a compact binary format:
+     * flags (type, registered id, animations, spilled), then the class id or name, the indexes of the animations
+     * and Arguments in the SharedTable, and either the spill key or the Dynamic Data and View Hierarchy
+     * @param sharedTable where the animations and Arguments are saved
+     * @param live true to ask an instantiated Fragment for its current data, false to only use the data
+     *             kept by keepInstance(): a Fragment without kept data is then saved with its Arguments only
+     * @return the saved bytes, only valid for TabStacker.saveInstance() as they depend on the Android version
+     */
+    byte[] saveInstance(SharedTable sharedTable, boolean live) {
+        if (mSpillKey != null) {
+            return marshall(mArguments, null, null, sharedTable);    // Still spilled
+        }
+        Bundle fragmentData;
+        if (mFragment == null) {
+            fragmentData = mFragmentData;
+        } else if (mKeptData != null) {
+            fragmentData = mKeptData;
+        } else if (live) {
+            fragmentData = saveFragmentData();
+        } else {
+            return marshall(getArguments(), null, null, sharedTable);
+        }
+        return marshall(getArguments(), fragmentData, mSavedView, sharedTable);
+    }
+
+    private byte[] marshall(Bundle arguments, Bundle fragmentData, SparseArray<Parcelable> savedView, SharedTable sharedTable) {
+        int fragmentId = getFragmentId();
+        int flags = FLAG_SHARED_ARGUMENTS;
+        if (mType == TabStacker.Type.Add) {
+            flags |= FLAG_ADD;
+        }
+        if (fragmentId != FragmentRegistry.NO_ID) {
+            flags |= FLAG_FRAGMENT_ID;
+        }
+        if (mAnimationSet != null) {
+            flags |= FLAG_SHARED_ANIMATION;
+        }
+        if (mSpillKey != null) {
+            flags |= FLAG_SPILLED;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(flags);
+            if (fragmentId != FragmentRegistry.NO_ID) {
+                parcel.writeInt(fragmentId);
+            } else {
+                parcel.writeString(getClassName());
+            }
+            if (mAnimationSet != null) {
+                parcel.writeInt(sharedTable.indexOf(mAnimationSet));
+            }
+            parcel.writeInt((arguments != null) ? sharedTable.indexOf(arguments) : -1);
+            if (mSpillKey != null) {
+                parcel.writeString(mSpillKey);
+            } else {
+                parcel.writeBundle(fragmentData);
+                ViewData.writeToParcel(savedView, parcel);
+            }
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static FragmentInfo unmarshall(byte[] data, SharedTable sharedTable) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            ClassLoader classLoader = FragmentInfo.class.getClassLoader();
+
+            int flags = parcel.readInt();
+            int fragmentId = FragmentRegistry.NO_ID;
+            String className = null;
+            if ((flags & FLAG_FRAGMENT_ID) != 0) {
+                fragmentId = parcel.readInt();
+            } else {
+                className = parcel.readString();
+            }
+            AnimationSet animationSet = null;
+            if ((flags & FLAG_SHARED_ANIMATION) != 0) {
+                animationSet = sharedTable.getAnimationSet(parcel.readInt());
+            } else if ((flags & FLAG_ANIMATION) != 0) {
+                animationSet = AnimationSet.fromArray(parcel.createIntArray());
+            }
+            Bundle arguments = null;
+            boolean sharedArguments = ((flags & FLAG_SHARED_ARGUMENTS) != 0);
+            if (sharedArguments) {
+                int argumentsIndex = parcel.readInt();
+                arguments = (argumentsIndex >= 0) ? sharedTable.getArguments(argumentsIndex) : null;
+            }
+            TabStacker.Type type = ((flags & FLAG_ADD) != 0) ? TabStacker.Type.Add : TabStacker.Type.Replace;
+
+            FragmentInfo fragmentInfo;
+            if ((flags & FLAG_SPILLED) != 0) {
+                fragmentInfo = new FragmentInfo(className, arguments, null, animationSet, type);
+                fragmentInfo.mSpillKey = parcel.readString();
+            } else {
+                if (!sharedArguments) {
+                    arguments = parcel.readBundle(classLoader);     // written inline by the first binary format
+                }
+                Bundle fragmentData = parcel.readBundle(classLoader);
+                fragmentInfo = new FragmentInfo(className, arguments, fragmentData, animationSet, type);
+                fragmentInfo.mSavedView = ViewData.readFromParcel(parcel, classLoader);
+            }
+            fragmentInfo.mFragmentId = fragmentId;
+            return fragmentInfo;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Saves the Dynamic Data and View Hierarchy now and keeps them, so that saveInstance() uses them directly
+     * until invalidateInstance()
+     */
+    void keepInstance() {
+        if (mFragment != null) {
+            mKeptData = saveFragmentData();
+        }
+    }
+
+    /**
+     * Forgets the data kept by keepInstance(), as the Fragment may change
+     */
+    void invalidateInstance() {
+        mKeptData = null;
+    }
+
+    /**
+     * Asks the Fragment for its dynamic data, and keeps its View hierarchy if it gives its View
+     * @return the dynamic data of the Fragment
+     */
+    private Bundle saveFragmentData() {
+        if (!(mFragment instanceof TabStacker.TabStackInterface)) {
+            return null;
+        }
+        Bundle fragmentData = new Bundle();
+        View fragmentView = ((TabStacker.TabStackInterface) mFragment).onSaveTabFragmentInstance(fragmentData);
+        if (fragmentView != null) {
+            mSavedView = ViewData.saveViewHierarchy(fragmentView);
+        }
+        return fragmentData;
+    }
+
+    /**
+     * Drops the Fragment and keeps its saved state instead, like FragmentInfo.saveInstance() does.
+     * The Fragment is instantiated and restored again by getFragment() when it is needed.
+     * Only a Fragment which is not in the FragmentManager can be dehydrated.
+     */
+    void dehydrate() {
+        if ((mFragment == null) || (mState != State.REMOVED)) {
+            return;
+        }
+        mFragmentId = getFragmentId();
+        mClassName = mFragment.getClass().getName();
+        mFragmentClass = mFragment.getClass();
+        mArguments = mFragment.getArguments();
+        mFragmentData = saveFragmentData();
+        removeFromIndex();
+        mFragment = null;
+        mKeptData = null;
+    }
 
-        return bundle;
+    /**
+     * Forgets the saved View hierarchy, the View will not be restored
+     */
+    void dropSavedView() {
+        mSavedView = null;
     }
 
     void restoreView(View fragmentView) {
@@ -0,0 +1,46 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.support.v4.app.Fragment;
+
+/**
+ * Creates Fragments from compact ids. An implementation is generated by the tabstacker-compiler annotation processor
+ * for the Fragments annotated with TabStackFragment, see TabStacker.setFragmentRegistry()
+ */
+
+public interface FragmentRegistry {
+
+    int NO_ID = 0;
+
+    /**
+     * @param fragmentId id of the Fragment class
+     * @return a new Fragment, or null if the id is not registered
+     */
+    Fragment createFragment(int fragmentId);
+
+    /**
+     * @param fragmentId id of the Fragment class
+     * @return the Fragment class, or null if the id is not registered
+     */
+    Class<? extends Fragment> getFragmentClass(int fragmentId);
+
+    /**
+     * @param fragmentClass a Fragment class
+     * @return the id of the Fragment class, or NO_ID if it is not registered
+     */
+    int getFragmentId(Class<? extends Fragment> fragmentClass);
+}
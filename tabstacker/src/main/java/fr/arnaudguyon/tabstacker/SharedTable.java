@@ -0,0 +1,215 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Table of the AnimationSets and Arguments of a saved state, so that identical ones are saved only once
+ * and referenced by their index from the saved FragmentInfos of all the tabs
+ */
+
+class SharedTable {
+
+    private static final String BUNDLE_ANIMATIONS = "SharedAnimations";
+    private static final String BUNDLE_ARGUMENTS = "SharedArguments";
+
+    private ArrayList<AnimationSet> mAnimationSets = new ArrayList<>();
+    private HashMap<AnimationSet, Integer> mAnimationIndexes = new HashMap<>();
+    private ArrayList<byte[]> mArguments = new ArrayList<>();                  // marshalled Arguments
+    private HashMap<ByteBuffer, Integer> mArgumentIndexes = new HashMap<>();    // by content
+    private ArrayList<Integer> mArgumentReferences = new ArrayList<>();         // saved entries using the Arguments
+
+    SharedTable() {
+    }
+
+    /**
+     * Creates a table which starts with the content of another one, so that the indexes of the other table stay valid.
+     * Its Arguments are not referenced until retain() is called.
+     */
+    SharedTable(SharedTable sharedTable) {
+        for (AnimationSet animationSet : sharedTable.mAnimationSets) {
+            addAnimationSet(animationSet);
+        }
+        for (byte[] arguments : sharedTable.mArguments) {
+            addArguments(arguments);
+        }
+    }
+
+    int indexOf(AnimationSet animationSet) {
+        Integer index = mAnimationIndexes.get(animationSet);
+        return (index != null) ? index : addAnimationSet(animationSet);
+    }
+
+    AnimationSet getAnimationSet(int index) {
+        return mAnimationSets.get(index);
+    }
+
+    /**
+     * @return the index of Arguments with the same content, added to the table if needed, and referenced once more
+     */
+    int indexOf(Bundle arguments) {
+        byte[] data = marshall(arguments);
+        Integer index = mArgumentIndexes.get(ByteBuffer.wrap(data));
+        if (index == null) {
+            index = addArguments(data);
+        }
+        retain(index);
+        return index;
+    }
+
+    /**
+     * References Arguments once more, for a saved entry which uses them without calling indexOf()
+     */
+    void retain(int index) {
+        mArgumentReferences.set(index, mArgumentReferences.get(index) + 1);
+    }
+
+    /**
+     * Dereferences Arguments, which are not saved anymore once no saved entry uses them.
+     * Their index stays valid for the other Arguments.
+     */
+    void release(int index) {
+        int references = mArgumentReferences.get(index) - 1;
+        mArgumentReferences.set(index, references);
+        if (references == 0) {
+            mArgumentIndexes.remove(ByteBuffer.wrap(mArguments.get(index)));
+            mArguments.set(index, new byte[0]);
+        }
+    }
+
+    /**
+     * @return the size of saved Arguments
+     */
+    int getArgumentsSize(int index) {
+        return mArguments.get(index).length;
+    }
+
+    /**
+     * @return new Arguments unmarshalled at each call, as a Fragment may change its own Arguments and their values
+     */
+    Bundle getArguments(int index) {
+        return unmarshall(mArguments.get(index));
+    }
+
+    /**
+     * @return the approximate size of the table once saved
+     */
+    int getSize() {
+        int size = 16 * mAnimationSets.size();
+        for (byte[] arguments : mArguments) {
+            size += arguments.length;
+        }
+        return size;
+    }
+
+    private int addAnimationSet(AnimationSet animationSet) {
+        int index = mAnimationSets.size();
+        mAnimationSets.add(animationSet);     // restored FragmentInfos share the instances of the table
+        mAnimationIndexes.put(animationSet, index);
+        return index;
+    }
+
+    private int addArguments(byte[] data) {
+        int index = mArguments.size();
+        mArguments.add(data);
+        mArgumentIndexes.put(ByteBuffer.wrap(data), index);
+        mArgumentReferences.add(0);
+        return index;
+    }
+
+    private static byte[] marshall(Bundle arguments) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(arguments);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Bundle unmarshall(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(SharedTable.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+
+    // *** SAVE / RESTORE ***
+
+    /**
+     * @return the number of bytes saved
+     */
+    int saveInstance(Bundle bundle) {
+        int[] animations = new int[4 * mAnimationSets.size()];
+        for (int i = 0; i < mAnimationSets.size(); ++i) {
+            System.arraycopy(mAnimationSets.get(i).toArray(), 0, animations, 4 * i, 4);
+        }
+        bundle.putIntArray(BUNDLE_ANIMATIONS, animations);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(mArguments.size());
+            for (byte[] arguments : mArguments) {
+                parcel.writeByteArray(arguments);
+            }
+            byte[] arguments = parcel.marshall();
+            bundle.putByteArray(BUNDLE_ARGUMENTS, arguments);
+            return 4 * animations.length + arguments.length;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    static SharedTable restoreInstance(Bundle bundle) {
+        SharedTable sharedTable = new SharedTable();
+
+        int[] animations = bundle.getIntArray(BUNDLE_ANIMATIONS);
+        if (animations != null) {
+            for (int i = 0; i + 4 <= animations.length; i += 4) {
+                int[] animation = new int[] { animations[i], animations[i + 1], animations[i + 2], animations[i + 3] };
+                sharedTable.addAnimationSet(AnimationSet.fromArray(animation));
+            }
+        }
+
+        byte[] data = bundle.getByteArray(BUNDLE_ARGUMENTS);
+        if (data != null) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                int count = parcel.readInt();
+                for (int i = 0; i < count; ++i) {
+                    sharedTable.addArguments(parcel.createByteArray());
+                }
+            } finally {
+                parcel.recycle();
+            }
+        }
+        return sharedTable;
+    }
+
+}
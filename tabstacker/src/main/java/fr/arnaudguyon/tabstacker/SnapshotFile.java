@@ -0,0 +1,188 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores the saved state of a TabStacker in a file, so that it can be restored after a cold start.
+ * As the state is a marshalled Parcel, the file is ignored if it was written by another build of the system
+ * or another version of the App.
+ */
+
+class SnapshotFile {
+
+    private static final String TAG = "SnapshotFile";
+    private static final int MAGIC = 0x54534e50;    // TSNP
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final Executor sWriteExecutor = Executors.newSingleThreadExecutor();    // keeps the writes in order
+
+    private File mFile;
+    private int mAppVersion;
+
+    /**
+     * @param appVersion version code of the App, as its Parcelables may change between versions
+     */
+    SnapshotFile(@NonNull File file, int appVersion) {
+        mFile = file;
+        mAppVersion = appVersion;
+    }
+
+    /**
+     * Writes the state in the background. The file is replaced atomically, so that a crash while writing
+     * leaves the previous snapshot.
+     * @param bundle the state, marshalled immediately so that it can be changed afterwards
+     */
+    void write(Bundle bundle) {
+        final byte[] data = marshall(bundle);
+        sWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeNow(data);
+            }
+        });
+    }
+
+    /**
+     * Reads the state. The file is read once, and the state is unmarshalled directly from the read bytes.
+     * @return the state, or null if there is no valid snapshot
+     */
+    Bundle read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            byte[] content = readFile();
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            if ((buffer.getInt() != MAGIC) || (buffer.getInt() != StackData.FORMAT_VERSION) || (buffer.getInt() != mAppVersion)) {
+                return null;
+            }
+            int fingerprintLength = readLength(buffer);
+            String fingerprint = new String(content, buffer.position(), fingerprintLength, "UTF-8");
+            if (!Build.FINGERPRINT.equals(fingerprint)) {
+                return null;    // Parcels may differ between builds
+            }
+            buffer.position(buffer.position() + fingerprintLength);
+            int dataLength = readLength(buffer);
+            parcel.unmarshall(content, buffer.position(), dataLength);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(SnapshotFile.class.getClassLoader());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read " + mFile, e);
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private byte[] readFile() throws IOException {
+        long length = mFile.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Too big: " + length);
+        }
+        byte[] content = new byte[(int) length];
+        FileInputStream inputStream = new FileInputStream(mFile);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = inputStream.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + mFile);
+                }
+                offset += read;
+            }
+        } finally {
+            close(inputStream);
+        }
+        return content;
+    }
+
+    /**
+     * @return a length read from the file, checked against what remains so that a corrupt file cannot exhaust the memory
+     */
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if ((length < 0) || (length > buffer.remaining())) {
+            throw new IOException("Corrupt length " + length);
+        }
+        return length;
+    }
+
+    private void writeNow(byte[] data) {
+        File tempFile = new File(mFile.getPath() + TEMP_EXTENSION);
+        FileOutputStream fileStream = null;
+        try {
+            fileStream = new FileOutputStream(tempFile);
+            DataOutputStream outputStream = new DataOutputStream(fileStream);
+            byte[] fingerprint = Build.FINGERPRINT.getBytes("UTF-8");
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(StackData.FORMAT_VERSION);
+            outputStream.writeInt(mAppVersion);
+            outputStream.writeInt(fingerprint.length);
+            outputStream.write(fingerprint);
+            outputStream.writeInt(data.length);
+            outputStream.write(data);
+            outputStream.flush();
+            fileStream.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + tempFile, e);
+            close(fileStream);
+            tempFile.delete();
+            return;
+        }
+        close(fileStream);
+        if (!tempFile.renameTo(mFile)) {
+            Log.w(TAG, "Unable to rename " + tempFile);
+        }
+    }
+
+    private static byte[] marshall(Bundle bundle) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(bundle);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+}
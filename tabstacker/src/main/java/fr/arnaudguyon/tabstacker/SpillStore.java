@@ -0,0 +1,147 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Stores Bundles in files of a private directory, so that they don't need to be kept in the saved instance state.
+ * Several SpillStores can share a directory: each one only deletes the files it has written or adopted.
+ */
+
+class SpillStore {
+
+    private static final String TAG = "SpillStore";
+    private static final String FILE_EXTENSION = ".spill";
+
+    private File mDirectory;
+    private HashSet<String> mOwnedKeys = new HashSet<>();  // files written or adopted by this store
+
+    SpillStore(@NonNull File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Writes a Bundle in a new file
+     * @return the key to read the Bundle back, or null if it could not be written
+     */
+    String write(Bundle bundle) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            return null;
+        }
+        String key = UUID.randomUUID().toString();
+        Parcel parcel = Parcel.obtain();
+        FileOutputStream outputStream = null;
+        try {
+            parcel.writeBundle(bundle);
+            outputStream = new FileOutputStream(getFile(key));
+            outputStream.write(parcel.marshall());
+            mOwnedKeys.add(key);
+            return key;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + key, e);
+            return null;
+        } finally {
+            parcel.recycle();
+            close(outputStream);
+        }
+    }
+
+    /**
+     * @param key key given by write()
+     * @return the Bundle, or null if it could not be read
+     */
+    Bundle read(String key) {
+        File file = getFile(key);
+        Parcel parcel = Parcel.obtain();
+        FileInputStream inputStream = null;
+        try {
+            byte[] data = new byte[(int) file.length()];
+            inputStream = new FileInputStream(file);
+            int offset = 0;
+            while (offset < data.length) {
+                int read = inputStream.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + key);
+                }
+                offset += read;
+            }
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(SpillStore.class.getClassLoader());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + key, e);
+            return null;
+        } finally {
+            parcel.recycle();
+            close(inputStream);
+        }
+    }
+
+    /**
+     * Takes the ownership of a file written by another store, for example before the process was killed
+     * @param key key of a file referenced by a restored state
+     */
+    void adopt(String key) {
+        mOwnedKeys.add(key);
+    }
+
+    /**
+     * Deletes the files of this store which are not referenced anymore. The files of other stores are kept.
+     * @param keys keys of the files to keep
+     */
+    void deleteAllExcept(Set<String> keys) {
+        Iterator<String> iterator = mOwnedKeys.iterator();
+        while (iterator.hasNext()) {
+            String key = iterator.next();
+            if (!keys.contains(key)) {
+                iterator.remove();
+                File file = getFile(key);
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Unable to delete " + file.getName());
+                }
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(mDirectory, key + FILE_EXTENSION);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+}
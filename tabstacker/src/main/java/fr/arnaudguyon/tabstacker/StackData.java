@@ -0,0 +1,86 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.os.Parcel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper to save and restore the FragmentInfos of a tab stack in a single byte array.
+ * The array starts with its format version so that it can be read even if it was kept from an older save.
+ */
+
+class StackData {
+
+    static final int FORMAT_VERSION = 1;
+
+    /**
+     * @param entries the bytes given by FragmentInfo.saveInstance(), from the bottom to the top of the stack
+     */
+    static byte[] marshall(List<byte[]> entries) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(FORMAT_VERSION);
+            parcel.writeInt(entries.size());
+            for(byte[] entry : entries) {
+                parcel.writeByteArray(entry);
+            }
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @param data bytes given by marshall()
+     * @return the bytes of each FragmentInfo, empty if the format is unknown
+     */
+    static ArrayList<byte[]> unmarshall(byte[] data) {
+        ArrayList<byte[]> entries = new ArrayList<>();
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() == FORMAT_VERSION) {
+                int size = parcel.readInt();
+                for(int i=0; i<size; ++i) {
+                    entries.add(parcel.createByteArray());
+                }
+            }
+            return entries;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @param data bytes given by marshall()
+     * @return the number of FragmentInfos, without reading them
+     */
+    static int getSize(byte[] data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, Math.min(data.length, 8));
+            parcel.setDataPosition(0);
+            return (parcel.readInt() == FORMAT_VERSION) ? parcel.readInt() : 0;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.Fragment;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Description of an entry of a tab stack, used to set a whole stack at once (see TabStacker.setStack).
+ * An entry is either an existing Fragment, or a Fragment class with its arguments.
+ */
+
+public class StackEntry {
+
+    private Fragment mFragment;
+    private Class<? extends Fragment> mFragmentClass;
+    private Bundle mArguments;
+    AnimationSet mAnimationSet;
+    TabStacker.Type mType;
+
+    private StackEntry(Fragment fragment, Class<? extends Fragment> fragmentClass, Bundle arguments, AnimationSet animationSet, TabStacker.Type type) {
+        TabStacker.checkFragmentClass((fragment != null) ? fragment.getClass() : fragmentClass);
+        mFragment = fragment;
+        mFragmentClass = fragmentClass;
+        mArguments = arguments;
+        mAnimationSet = animationSet;
+        mType = type;
+    }
+
+    /**
+     * @param fragment The fragment to display
+     * @param animationSet Optional animations
+     * @return an entry which replaces the fragments below it
+     */
+    public static StackEntry replace(@NonNull Fragment fragment, @Nullable AnimationSet animationSet) {
+        return new StackEntry(fragment, null, null, animationSet, TabStacker.Type.Replace);
+    }
+
+    /**
+     * @param fragment The fragment to display
+     * @param animationSet Optional animations
+     * @return an entry which is added above the fragments below it
+     */
+    public static StackEntry add(@NonNull Fragment fragment, @Nullable AnimationSet animationSet) {
+        return new StackEntry(fragment, null, null, animationSet, TabStacker.Type.Add);
+    }
+
+    /**
+     * @param fragmentClass Class of the fragment to display, instantiated only if needed
+     * @param arguments Optional arguments of the fragment
+     * @param animationSet Optional animations
+     * @return an entry which replaces the fragments below it
+     */
+    public static StackEntry replace(@NonNull Class<? extends Fragment> fragmentClass, @Nullable Bundle arguments, @Nullable AnimationSet animationSet) {
+        return new StackEntry(null, fragmentClass, arguments, animationSet, TabStacker.Type.Replace);
+    }
+
+    /**
+     * @param fragmentClass Class of the fragment to display, instantiated only if needed
+     * @param arguments Optional arguments of the fragment
+     * @param animationSet Optional animations
+     * @return an entry which is added above the fragments below it
+     */
+    public static StackEntry add(@NonNull Class<? extends Fragment> fragmentClass, @Nullable Bundle arguments, @Nullable AnimationSet animationSet) {
+        return new StackEntry(null, fragmentClass, arguments, animationSet, TabStacker.Type.Add);
+    }
+
+    /**
+     * @param first true if this is the 1st entry of the stack, which is always a Replace without animation
+     * @return the stack entry, with a Fragment that is only instantiated when it is needed
+     */
+    FragmentInfo createFragmentInfo(boolean first) {
+        AnimationSet animationSet = first ? null : mAnimationSet;
+        TabStacker.Type type = first ? TabStacker.Type.Replace : mType;
+        if (mFragment != null) {
+            return new FragmentInfo(mFragment, animationSet, type);
+        }
+        return new FragmentInfo(mFragmentClass, mArguments, animationSet, type);
+    }
+
+    /**
+     * @param fragmentInfo an entry of a stack
+     * @param first true if this is the 1st entry of the stack, compared as created by createFragmentInfo(true)
+     * @return true if the stack entry already displays what this entry describes, so that it can be kept
+     */
+    boolean matches(@NonNull FragmentInfo fragmentInfo, boolean first) {
+        AnimationSet animationSet = first ? null : mAnimationSet;
+        TabStacker.Type type = first ? TabStacker.Type.Replace : mType;
+        if ((fragmentInfo.mType != type) || !equals(fragmentInfo.mAnimationSet, animationSet)) {
+            return false;
+        }
+        if (mFragment != null) {
+            return (fragmentInfo.mFragment == mFragment);
+        }
+        return mFragmentClass.getName().equals(fragmentInfo.getClassName()) && equals(fragmentInfo.getArguments(), mArguments);
+    }
+
+    private static boolean equals(Object value1, Object value2) {
+        if (value1 == value2) {
+            return true;
+        }
+        if ((value1 == null) || (value2 == null)) {
+            return false;
+        }
+        if ((value1 instanceof Bundle) && (value2 instanceof Bundle)) {
+            Bundle bundle1 = (Bundle) value1;
+            Bundle bundle2 = (Bundle) value2;
+            Set<String> keys = bundle1.keySet();
+            if (!keys.equals(bundle2.keySet())) {
+                return false;
+            }
+            for (String key : keys) {
+                if (!equals(bundle1.get(key), bundle2.get(key))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value1.getClass().isArray() && (value1.getClass() == value2.getClass())) {
+            return Arrays.deepEquals(new Object[] { value1 }, new Object[] { value2 });
+        }
+        return value1.equals(value2);
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.support.v4.app.Fragment;
+import android.util.LruCache;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+import android.widget.ImageView;
+
+/**
+ * Downscaled bitmaps of the tabs as they were left, shown as placeholders while the Fragments of a tab are
+ * put back on screen, then cross-faded to the real Views
+ */
+
+class TabSnapshots {
+
+    private static final long FADE_DURATION_MS = 150;
+    private static final long MAX_PLACEHOLDER_MS = 1000;   // removed anyway if the View does not show up
+
+    private LruCache<Integer, Bitmap> mBitmaps;     // by tab handle
+    private Bitmap mSpareBitmap;                    // replaced or evicted, reused by the next capture of the same size
+    private float mScale;
+    private ImageView mPlaceholder;
+    private Bitmap mPlaceholderBitmap;              // shown by mPlaceholder, not reused while it is on screen
+
+    /**
+     * @param maxBytes maximum size of all the bitmaps
+     * @param scale scale of the bitmaps compared to the Views, for example 0.5. At most 1
+     */
+    TabSnapshots(int maxBytes, float scale) {
+        mScale = Math.min(scale, 1);
+        mBitmaps = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer tab, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer tab, Bitmap oldBitmap, Bitmap newBitmap) {
+                if (oldBitmap != mPlaceholderBitmap) {
+                    mSpareBitmap = oldBitmap;
+                }
+            }
+        };
+    }
+
+    /**
+     * Draws the View of the top Fragment of a tab that is left
+     * @return the ViewGroup which holds the Fragments, or null if the View could not be drawn
+     */
+    ViewGroup capture(int tab, Fragment topFragment) {
+        View view = (topFragment != null) ? topFragment.getView() : null;
+        mBitmaps.remove(tab);   // becomes mSpareBitmap
+        if ((view == null) || !(view.getParent() instanceof ViewGroup) || (view.getWidth() == 0) || (view.getHeight() == 0)) {
+            return null;
+        }
+        int width = Math.max(1, (int) (view.getWidth() * mScale));
+        int height = Math.max(1, (int) (view.getHeight() * mScale));
+        Bitmap bitmap = mSpareBitmap;
+        mSpareBitmap = null;
+        if ((bitmap != null) && (bitmap.getWidth() == width) && (bitmap.getHeight() == height)) {
+            bitmap.eraseColor(0);
+        } else {
+            try {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);     // half the memory of ARGB_8888
+            } catch (OutOfMemoryError e) {
+                return null;    // only a placeholder
+            }
+        }
+        Canvas canvas = new Canvas(bitmap);
+        canvas.scale((float) width / view.getWidth(), (float) height / view.getHeight());
+        view.draw(canvas);
+        mBitmaps.put(tab, bitmap);
+        return (ViewGroup) view.getParent();
+    }
+
+    /**
+     * Shows the bitmap of a tab in the container until the View of its top Fragment is laid out, then fades it out
+     * @param container the ViewGroup which holds the Fragments
+     */
+    void show(int tab, final ViewGroup container, final Fragment topFragment) {
+        removePlaceholder();
+        Bitmap bitmap = mBitmaps.get(tab);
+        if ((bitmap == null) || (topFragment == null) || isReady(topFragment.getView())) {
+            return;
+        }
+        final ImageView placeholder = new ImageView(container.getContext());
+        placeholder.setImageBitmap(bitmap);
+        mPlaceholderBitmap = bitmap;
+        placeholder.setScaleType(ImageView.ScaleType.FIT_XY);
+        placeholder.setClickable(true);     // the real View is not there yet
+        container.addView(placeholder, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        mPlaceholder = placeholder;
+
+        final ViewTreeObserver observer = container.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (mPlaceholder != placeholder) {
+                    removeListener();
+                } else if (isReady(topFragment.getView())) {
+                    removeListener();
+                    container.removeView(placeholder);  // back on top of the real View, then faded out
+                    container.addView(placeholder);
+                    fadeOut(placeholder);
+                }
+                return true;
+            }
+
+            private void removeListener() {
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+            }
+        });
+        placeholder.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (mPlaceholder == placeholder) {
+                    fadeOut(placeholder);
+                }
+            }
+        }, MAX_PLACEHOLDER_MS);
+    }
+
+    private static boolean isReady(View view) {
+        return (view != null) && (view.getParent() != null) && (view.getWidth() > 0) && !view.isLayoutRequested();
+    }
+
+    private void fadeOut(final ImageView placeholder) {
+        placeholder.setClickable(false);
+        placeholder.animate().alpha(0).setDuration(FADE_DURATION_MS).setListener(new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                remove(placeholder);
+            }
+        }).start();
+    }
+
+    private void removePlaceholder() {
+        if (mPlaceholder != null) {
+            mPlaceholder.animate().cancel();
+            remove(mPlaceholder);
+        }
+    }
+
+    private void remove(ImageView placeholder) {
+        ViewParent parent = placeholder.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(placeholder);
+        }
+        if (mPlaceholder == placeholder) {
+            mPlaceholder = null;
+            mPlaceholderBitmap = null;
+        }
+    }
+
+    /**
+     * Drops the bitmap of a tab whose top Fragment has changed
+     */
+    void remove(int tab) {
+        mBitmaps.remove(tab);
+    }
+
+    /**
+     * Drops all the bitmaps, the placeholder on screen stays until it fades out
+     */
+    void clear() {
+        mBitmaps.evictAll();
+        mSpareBitmap = null;
+    }
+
+}
@@ -15,35 +15,110 @@
  */
 package fr.arnaudguyon.tabstacker;
 
+import android.content.ComponentCallbacks2;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.support.annotation.IdRes;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Manager which handles several Back Stacks for Fragments.
  * Each stack is linked to a "tab" name so that it is easy to switch from one stack to another one using tab names.
+ * Each public operation commits at most one FragmentTransaction, with reordering allowed.
  */
 public class TabStacker {
 
+    private static final String TAG = "TabStacker";
     private static final String BUNDLE_TAB_STACKER = "TabStacker";
+    private static final long SNAPSHOT_DELAY_MS = 1000;
+    private static final int INITIAL_TAB = 0;       // handle of the "" tab, current until the first switchToTab()
+    private static final TabStackListener[] NO_LISTENERS = new TabStackListener[0];
+
+    static FragmentRegistry sFragmentRegistry;
 
     enum Type {
         Replace,
         Add
     }
 
-    private String mCurrentTab = "";
+    /**
+     * What happens to the Fragments of a tab when switching to another tab
+     */
+    public enum SwitchMode {
+        REMOVE,     // Fragments are removed, and created again when coming back to the tab (default)
+        DETACH,     // Fragments are detached: instances are kept but their Views are destroyed
+        HIDE        // Fragments are hidden: instances and Views are kept, coming back costs no inflation
+    }
+
+    private int mCurrentTab;                                                        // handle of the current tab
     private FragmentManager mFragmentManager;
     private int mFragmentHolder;
-    private HashMap<String, ArrayList<FragmentInfo>> mStacks = new HashMap<>();     // Tab name, FragmentInfo List
+    private ArrayList<String> mTabNames = new ArrayList<>();                        // by tab handle
+    private HashMap<String, Integer> mTabHandles = new HashMap<>();                 // Tab name, tab handle
+    private ArrayList<ArrayList<FragmentInfo>> mStacks = new ArrayList<>();         // by tab handle, null if no stack
+    private ArrayList<byte[]> mPendingStacks = new ArrayList<>();                   // by tab handle, saved stack not restored yet
+    private SharedTable mSharedTable;                                               // of the pending stacks
+    private IdentityHashMap<Fragment, FragmentInfo> mFragmentIndex = new IdentityHashMap<>();  // instantiated Fragments of all the stacks
+    private SwitchMode mSwitchMode = SwitchMode.REMOVE;
+    private boolean mDehydrateCoveredFragments;
+    private boolean mDetachCoveredFragments;
+    private boolean mSaveOnDismiss;
+    private SpillStore mSpillStore;
+    private int mMaxSavedBytes;
+    private SnapshotFile mSnapshotFile;
+    private Handler mSnapshotHandler;
+    private Runnable mSnapshotRunnable;
+    private boolean mSnapshotPending;                           // a change is not in the snapshot yet
+    private HashSet<String> mSnapshotSpillKeys = new HashSet<>();   // spilled data referenced by the last snapshot
+    private HashSet<String> mSavedSpillKeys = new HashSet<>();      // spilled data referenced by the last saveInstance()
+    private int mMaxLiveTabs;                                   // 0 means no limit
+    private ArrayList<Integer> mTabUsage = new ArrayList<>();   // Tab handles, the most recently used at the end
+    private TabTransitions mTransitions = new TabTransitions();
+    private int mPredictedTabs;                                 // 0: no predictive preloading
+    private TabRootFactory mRootFactory;
+    private HashSet<Integer> mWarmTabs = new HashSet<>();       // Tab handles, preloaded as they are likely to be next
+    private boolean mPredictionScheduled;
+    private TabSnapshots mTabSnapshots;                         // null: no placeholder when switching tabs
+    private FragmentTransaction mTransaction;   // Collects all the changes of the current operation
+    private Batch mBatch;                       // not null between beginBatch() and commitBatch()
+    private TabStackerMetrics.Recorder mMetrics;                                    // null when disabled
+    private int mOperationDepth;                // nested operations are measured in the outer one, even when disabled
+    private int mSavedBytes;                    // size of the byte arrays of the last saveState()
+    private TabStackListener[] mListeners = NO_LISTENERS;                           // copied on write
+    private ArrayList<TabStackListener[]> mTabListeners = new ArrayList<>();        // by tab handle, copied on write
+    private Handler mCoalesceHandler;           // not null when tab switches and back presses are coalesced
+    private Runnable mCoalesceRunnable;
+    private boolean mCoalescing;                // a batch is open until mCoalesceRunnable runs
+    private final ConcurrentLinkedQueue<Command> mCommands = new ConcurrentLinkedQueue<>();  // posted from any thread
+    private final AtomicBoolean mDrainPosted = new AtomicBoolean();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drainCommands();
+        }
+    };
 
     /**
      * Constructor for a TabStacker instance
@@ -53,6 +128,314 @@ public class TabStacker {
     public TabStacker(FragmentManager fragmentManager, @IdRes int fragmentHolder) {
         mFragmentManager = fragmentManager;
         mFragmentHolder = fragmentHolder;
+        mCurrentTab = registerTab("");     // INITIAL_TAB
+    }
+
+    /**
+     * Registers a tab, so that it can be used with the methods which take a tab handle instead of its name.
+     * They avoid looking the name up at each call.
+     * @param tabName Name of the tab
+     * @return the handle of the tab, which is always the same for this name in this TabStacker
+     */
+    public int registerTab(@NonNull String tabName) {
+        Integer tab = mTabHandles.get(tabName);
+        if (tab != null) {
+            return tab;
+        }
+        int newTab = mTabNames.size();
+        mTabNames.add(tabName);
+        mTabHandles.put(tabName, newTab);
+        mStacks.add(null);
+        mTabListeners.add(NO_LISTENERS);
+        mPendingStacks.add(null);
+        return newTab;
+    }
+
+    /**
+     * @param tab handle given by registerTab()
+     * @return the name of the tab
+     */
+    public String getTabName(int tab) {
+        return mTabNames.get(tab);
+    }
+
+    /**
+     * Sets the registry generated by the tabstacker-compiler annotation processor, for example in Application.onCreate().
+     * The Fragments annotated with TabStackFragment are then saved with their id and created without reflection.
+     * The other Fragments are still saved with their class name.
+     * @param fragmentRegistry the generated TabStackFragmentRegistry, or null
+     */
+    public static void setFragmentRegistry(FragmentRegistry fragmentRegistry) {
+        sFragmentRegistry = fragmentRegistry;
+    }
+
+    /**
+     * Sets what happens to the Fragments of the current tab when switching to another tab.
+     * With DETACH or HIDE the Fragments stay in the FragmentManager, so that coming back to the tab is cheaper.
+     * @param switchMode the mode to use for the next tab switches
+     */
+    public void setSwitchMode(@NonNull SwitchMode switchMode) {
+        mSwitchMode = switchMode;
+    }
+
+    /**
+     * @return what happens to the Fragments of the current tab when switching to another tab
+     */
+    public SwitchMode getSwitchMode() {
+        return mSwitchMode;
+    }
+
+    /**
+     * When enabled, the fragments that are fully covered by a Replace are dropped and only their saved state is kept
+     * (as done by saveInstance). They are instantiated and restored again when they are popped back.
+     * This is what a FragmentStatePagerAdapter does for its pages. Disabled by default.
+     * @param dehydrate true to drop the covered fragments
+     */
+    public void setDehydrateCoveredFragments(boolean dehydrate) {
+        mDehydrateCoveredFragments = dehydrate;
+        if (dehydrate) {
+            for (ArrayList<FragmentInfo> infos : mStacks) {
+                if (infos != null) {
+                    dehydrateCoveredInfos(infos);
+                }
+            }
+        }
+    }
+
+    /**
+     * When enabled, the fragments of the current tab which are covered by an Add are detached, so that their
+     * lifecycle goes down to CREATED: they are not started nor resumed and have no View. They are attached again
+     * when they come back at the top. Only use it when the added fragments are opaque, as nothing is drawn below them.
+     * Disabled by default.
+     * @param detach true to detach the covered fragments
+     */
+    public void setDetachCoveredFragments(boolean detach) {
+        mDetachCoveredFragments = detach;
+        if (!isBatching()) {
+            if (detach) {
+                updateCoveredFragments();
+            } else {
+                pushAll(mCurrentTab);
+            }
+            commitTransaction();
+        }
+    }
+
+    /**
+     * When enabled, the state of a fragment is saved as soon as it is dismissed (REPLACED, OVERLAPPED, LEAVING_STACK)
+     * and kept until it is presented again, so that saveInstance() only has to save the visible fragments.
+     * The fragments must not change their saved data while they are dismissed. Disabled by default.
+     * @param saveOnDismiss true to save the fragments when they are dismissed
+     */
+    public void setSaveOnDismiss(boolean saveOnDismiss) {
+        mSaveOnDismiss = saveOnDismiss;
+        if (!saveOnDismiss) {
+            for (ArrayList<FragmentInfo> infos : mStacks) {
+                if (infos != null) {
+                    for (FragmentInfo info : infos) {
+                        info.invalidateInstance();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Limits the size of the state saved by saveInstance(), which otherwise can exceed the Binder transaction limit
+     * with big stacks. Above the limit, the data and View hierarchies of the biggest entries are written in files
+     * of the given directory, then their arguments if it is not enough, and only read back when they are needed
+     * after restoreInstance(). A warning is logged if the state stays above the limit.
+     * Must be called before restoreInstance(). The files of this TabStacker that are not referenced anymore are
+     * deleted by saveInstance(). The directory can be shared by several TabStackers, as each one only deletes its files.
+     * Files of states that are never restored stay until the system clears the cache.
+     * @param directory a private directory, for example in Context.getCacheDir()
+     * @param maxSavedBytes the maximum size of the saved state, for example 100 * 1024
+     */
+    public void setSpillDirectory(@NonNull File directory, int maxSavedBytes) {
+        mSpillStore = new SpillStore(directory);
+        mMaxSavedBytes = maxSavedBytes;
+    }
+
+    /**
+     * Keeps a snapshot of the stacks in a file, so that they can be restored by restoreFromSnapshot() after a cold start.
+     * The snapshot is built shortly after a change is committed, with the data the Fragments kept when they were
+     * dismissed (see setSaveOnDismiss()), and written in the background. saveInstance() writes the complete state,
+     * if it changed.
+     * It is ignored after a system update or when the App version changes.
+     * Spilled data (see setSpillDirectory) referenced by the last snapshot is kept until a newer snapshot is written.
+     * @param file a private file, for example in Context.getFilesDir(). null to stop the snapshots
+     * @param appVersion version code of the App, for example BuildConfig.VERSION_CODE
+     */
+    public void setSnapshotFile(File file, int appVersion) {
+        if (mSnapshotHandler != null) {
+            mSnapshotHandler.removeCallbacks(mSnapshotRunnable);
+        }
+        mSnapshotPending = false;
+        if (file == null) {
+            mSnapshotFile = null;
+            mSnapshotSpillKeys.clear();
+            return;
+        }
+        mSnapshotFile = new SnapshotFile(file, appVersion);
+        if (mSnapshotHandler == null) {
+            mSnapshotHandler = new Handler(Looper.getMainLooper());
+            mSnapshotRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    writeSnapshot();
+                }
+            };
+        }
+    }
+
+    /**
+     * Coalesces the tab switches and back presses which are done in a row (for example when the user hammers the
+     * tab bar): they only change the stacks, and the net result is applied with a single transaction at the next
+     * turn of the main loop, after the pending transactions. Only the fragments visible at the end are presented,
+     * the intermediate tabs get no callback. Disabled by default.
+     * @param coalesce true to coalesce the tab switches and back presses
+     */
+    public void setCoalesceNavigation(boolean coalesce) {
+        if (!coalesce) {
+            flushCoalesced();
+            mCoalesceHandler = null;
+        } else if (mCoalesceHandler == null) {
+            mCoalesceHandler = new Handler(Looper.getMainLooper());
+            mCoalesceRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    if (mFragmentManager.isDestroyed()) {
+                        mCoalescing = false;
+                        mBatch = null;      // nothing to apply anymore
+                    } else {
+                        flushCoalesced();
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * To be called from the Activity onResumeFragments(). Applies the navigation which was coalesced
+     * (see setCoalesceNavigation) or posted (see post) while the state was saved, as the FragmentManager
+     * could not change then.
+     */
+    public void onResume() {
+        flushCoalesced();
+        drainCommands();
+    }
+
+    /**
+     * Limits the number of tabs which keep their Fragment instances. When switching tabs, the fragments of the
+     * least recently used tabs above this limit are dropped and only their saved state is kept (as done by saveInstance).
+     * They are instantiated and restored again when switching back to their tab.
+     * @param maxLiveTabs the maximum number of tabs with live fragments, including the current tab. 0 for no limit (default)
+     */
+    public void setMaxLiveTabs(int maxLiveTabs) {
+        mMaxLiveTabs = maxLiveTabs;
+        if (!isBatching()) {
+            evictTabs();
+            commitTransaction();
+        }
+    }
+
+    /**
+     * Preloads the tabs which are the most likely to be used next, according to the tab switches made so far
+     * (which are saved with the TabStacker). When the main thread is idle after a tab switch, the visible fragments
+     * of these tabs are created and kept off screen (detached, or hidden with SwitchMode.HIDE). They are kept
+     * whatever setMaxLiveTabs(), and they are the first ones dropped by onTrimMemory().
+     * @param budget the number of tabs to preload, 0 to disable (default)
+     * @param rootFactory optional, creates the root fragment of the predicted tabs which have no fragment yet
+     */
+    public void setPredictiveTabs(int budget, @Nullable TabRootFactory rootFactory) {
+        mPredictedTabs = budget;
+        mRootFactory = rootFactory;
+        if (budget <= 0) {
+            mWarmTabs.clear();
+        }
+    }
+
+    /**
+     * Shows a picture of a tab while its fragments are put back on screen by switchToTab(), then cross-fades to them.
+     * The picture is a downscaled bitmap of the top fragment View, taken when the tab is left. The bitmaps are
+     * dropped by onTrimMemory().
+     * @param maxBytes maximum memory used by the bitmaps of all the tabs, 0 to disable (default)
+     * @param scale size of the bitmaps compared to the Views, for example 0.5f
+     */
+    public void setTabSnapshots(int maxBytes, float scale) {
+        if (mTabSnapshots != null) {
+            mTabSnapshots.clear();
+        }
+        mTabSnapshots = (maxBytes > 0) ? new TabSnapshots(maxBytes, scale) : null;
+    }
+
+    /**
+     * Records the wall time, the committed FragmentTransactions and the instantiated fragments of the navigation
+     * operations, and the size of the saved state, see getMetrics(). Disabled by default.
+     * @param enabled true to record the metrics, false to stop and reset them
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        if (!enabled) {
+            mMetrics = null;
+        } else if (mMetrics == null) {
+            mMetrics = new TabStackerMetrics.Recorder();
+        }
+    }
+
+    /**
+     * @return a snapshot of the metrics recorded since setMetricsEnabled(true), or null if they are disabled
+     */
+    public TabStackerMetrics getMetrics() {
+        return (mMetrics != null) ? mMetrics.snapshot() : null;
+    }
+
+    /**
+     * To be called from the Activity onTrimMemory(). Sheds the state of the inactive tabs depending on the level:
+     * the saved View hierarchies of the other tabs are dropped first, then the fragments of the other tabs,
+     * and at the worst levels the covered fragments of the current tab so that only the visible ones stay live.
+     * @param level the level given to onTrimMemory()
+     */
+    public void onTrimMemory(int level) {
+        flushCoalesced();
+        boolean critical = (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) || (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE);
+        boolean low = critical || (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) || (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return;
+        }
+
+        if (mTabSnapshots != null) {
+            mTabSnapshots.clear();
+        }
+
+        // Once the state is saved the FragmentManager cannot change, so the detached / hidden fragments are kept
+        boolean removeParked = !mFragmentManager.isStateSaved();
+
+        // Preloaded tabs first, they were only predicted
+        for (int tab : mWarmTabs) {
+            ArrayList<FragmentInfo> infos = mStacks.get(tab);
+            if ((tab != mCurrentTab) && (infos != null)) {
+                dehydrateInfos(infos, removeParked);
+            }
+        }
+        mWarmTabs.clear();
+
+        for (int tab = 0; tab < mStacks.size(); ++tab) {
+            ArrayList<FragmentInfo> infos = mStacks.get(tab);
+            if ((tab == mCurrentTab) || (infos == null)) {
+                continue;
+            }
+            for (FragmentInfo info : infos) {
+                info.dropSavedView();
+            }
+            if (low) {
+                dehydrateInfos(infos, removeParked);
+            }
+        }
+        ArrayList<FragmentInfo> currentInfos = getStack(mCurrentTab);
+        if (critical && (currentInfos != null)) {
+            dehydrateCoveredInfos(currentInfos);
+        }
+        commitTransaction();
     }
 
     /**
@@ -62,15 +445,49 @@ public class TabStacker {
      * false if the new tab is empty (so that a new Fragment must be put). In all cases the current tab becomes the new tab.
      */
     public boolean switchToTab(String tabName) {
-        if (tabName.equals(mCurrentTab)) {
-            return true;
+        return switchToTab(registerTab(tabName));
+    }
+
+    /**
+     * Switch from the current tab to another tab.
+     * @param tab handle of the New tab, given by registerTab()
+     * @return true if the new tab is already the current tab, or if the new tab has been restored (not empty).
+     * false if the new tab is empty (so that a new Fragment must be put). In all cases the current tab becomes the new tab.
+     */
+    public boolean switchToTab(int tab) {
+        long start = startOperation();
+        try {
+            return (tab == mCurrentTab) || doSwitchToTab(tab);
+        } finally {
+            endOperation(TabStackerMetrics.Operation.SWITCH_TO_TAB, start);
+        }
+    }
+
+    private boolean doSwitchToTab(int tab) {
+        coalesce();
+        ViewGroup container = null;
+        if ((mTabSnapshots != null) && !isBatching() && (mSwitchMode != SwitchMode.HIDE)) {  // hidden Views come back at once
+            container = mTabSnapshots.capture(mCurrentTab, getTopFragment(mCurrentTab));
         }
-        notifyAllRemoved(mCurrentTab, DismissReason.LEAVING_STACK);
-        popAll(mCurrentTab);
-        mCurrentTab = tabName;
-        notifyAllRestored(tabName, PresentReason.RESTORING_STACK);
-        pushAll(tabName);
-        return !isEmpty(tabName);
+        notifyVisibleRemoved(mCurrentTab, DismissReason.LEAVING_STACK);
+        popAll(mCurrentTab, mSwitchMode);
+        if (!isBatching()) {
+            recordTransition(mCurrentTab, tab);     // a batch only records its net transition
+        }
+        mCurrentTab = tab;
+        mWarmTabs.remove(tab);
+        useTab(tab);
+        pushAll(tab);
+        if (!isBatching()) {
+            evictTabs();
+        }
+        commitTransaction();
+        if (container != null) {
+            mTabSnapshots.show(tab, container, getTopFragment(tab));
+        }
+        notifyVisibleRestored(tab, PresentReason.RESTORING_STACK);
+        schedulePredictedTabs();
+        return !isEmpty(tab);
     }
 
     /**
@@ -80,12 +497,19 @@ public class TabStacker {
      */
     public void replaceFragment(Fragment fragment, AnimationSet animationSet) {
         checkFragmentInterface(fragment);
-        FragmentInfo topInfo = getTopFragmentInfo(mCurrentTab);
-        if (topInfo != null) {
-            onFragmentDismissed(topInfo.mFragment, DismissReason.REPLACED);
-        }
-        pushFragment(fragment, animationSet, Type.Replace);
-        onFragmentPresented(fragment, PresentReason.NEW_FRAGMENT);
+        pushFragment(new FragmentInfo(fragment, animationSet, Type.Replace));
+    }
+
+    /**
+     * Replace a fragment by another one, in the current tab stack.
+     * The fragment is only instantiated when it becomes visible (for example at the end of a batch)
+     * @param fragmentClass Class of the new fragment to display
+     * @param arguments Optional arguments of the new fragment
+     * @param animationSet Optional animations
+     */
+    public void replaceFragment(@NonNull Class<? extends Fragment> fragmentClass, Bundle arguments, AnimationSet animationSet) {
+        checkFragmentClass(fragmentClass);
+        pushFragment(new FragmentInfo(fragmentClass, arguments, animationSet, Type.Replace));
     }
 
     /**
@@ -95,12 +519,19 @@ public class TabStacker {
      */
     public void addFragment(Fragment fragment, AnimationSet animationSet) {
         checkFragmentInterface(fragment);
-        FragmentInfo topInfo = getTopFragmentInfo(mCurrentTab);
-        if (topInfo != null) {
-            onFragmentDismissed(topInfo.mFragment, DismissReason.OVERLAPPED);
-        }
-        pushFragment(fragment, animationSet, Type.Add);
-        onFragmentPresented(fragment, PresentReason.NEW_FRAGMENT);
+        pushFragment(new FragmentInfo(fragment, animationSet, Type.Add));
+    }
+
+    /**
+     * Add a new fragment to the current tab stack.
+     * The fragment is only instantiated when it becomes visible (for example at the end of a batch)
+     * @param fragmentClass Class of the new fragment to display
+     * @param arguments Optional arguments of the new fragment
+     * @param animationSet Optional animations
+     */
+    public void addFragment(@NonNull Class<? extends Fragment> fragmentClass, Bundle arguments, AnimationSet animationSet) {
+        checkFragmentClass(fragmentClass);
+        pushFragment(new FragmentInfo(fragmentClass, arguments, animationSet, Type.Add));
     }
 
     /**
@@ -108,9 +539,17 @@ public class TabStacker {
      * @return the top fragment of the selectedTab tab stack
      */
     public Fragment getTopFragment(@NonNull String selectedTab) {
-        FragmentInfo fragmentInfo = getTopFragmentInfo(selectedTab);
+        return getTopFragment(registerTab(selectedTab));
+    }
+
+    /**
+     * @param tab handle of the tab, given by registerTab()
+     * @return the top fragment of the tab stack
+     */
+    public Fragment getTopFragment(int tab) {
+        FragmentInfo fragmentInfo = getTopFragmentInfo(tab);
         if (fragmentInfo != null) {
-            return fragmentInfo.mFragment;
+            return fragmentInfo.getFragment();
         } else {
             return null;
         }
@@ -127,6 +566,13 @@ public class TabStacker {
      * @return the name of the current tab stack
      */
     public String getCurrentTabName() {
+        return getTabName(mCurrentTab);
+    }
+
+    /**
+     * @return the handle of the current tab stack
+     */
+    public int getCurrentTab() {
         return mCurrentTab;
     }
 
@@ -143,29 +589,62 @@ public class TabStacker {
      * @return the number of fragments in the tabName tab stack
      */
     public int getTabSize(String tabName) {
-        ArrayList<FragmentInfo> list = mStacks.get(tabName);
-        return (list != null) ? list.size() : 0;
+        Integer tab = mTabHandles.get(tabName);
+        return (tab != null) ? getTabSize(tab) : 0;
     }
 
-    private void pushFragment(Fragment fragment, AnimationSet animationSet, Type type) {
-        checkFragmentInterface(fragment);
+    /**
+     * @param tab handle of the tab, given by registerTab()
+     * @return the number of fragments in the tab stack
+     */
+    public int getTabSize(int tab) {
+        ArrayList<FragmentInfo> list = mStacks.get(tab);
+        if (list != null) {
+            return list.size();
+        }
+        byte[] stackData = mPendingStacks.get(tab);
+        return (stackData != null) ? StackData.getSize(stackData) : 0;
+    }
+
+    private void pushFragment(FragmentInfo fragmentInfo) {
+        TabStackerMetrics.Operation operation = (fragmentInfo.mType == Type.Replace)
+                ? TabStackerMetrics.Operation.REPLACE_FRAGMENT : TabStackerMetrics.Operation.ADD_FRAGMENT;
+        long start = startOperation();
+        try {
+            doPushFragment(fragmentInfo);
+        } finally {
+            endOperation(operation, start);
+        }
+    }
+
+    private void doPushFragment(FragmentInfo fragmentInfo) {
+        FragmentInfo topInfo = getTopFragmentInfo(mCurrentTab);
+        if (topInfo != null) {
+            onFragmentDismissed(topInfo, (fragmentInfo.mType == Type.Replace) ? DismissReason.REPLACED : DismissReason.OVERLAPPED);
+        }
         if (isEmpty(mCurrentTab)) {
-            type = Type.Replace;
-            animationSet = null;
+            fragmentInfo.mType = Type.Replace;
+            fragmentInfo.mAnimationSet = null;
         }
-        FragmentInfo fragmentInfo = new FragmentInfo(fragment, animationSet, type);
-        if (type == Type.Replace) {
+        if (fragmentInfo.mType == Type.Replace) {
             replaceFragment(fragmentInfo, false);
         } else {
             addFragment(fragmentInfo, false);
         }
 
-        ArrayList<FragmentInfo> list = mStacks.get(mCurrentTab);
+        ArrayList<FragmentInfo> list = getStack(mCurrentTab);
         if (list == null) {
             list = new ArrayList<>();
-            mStacks.put(mCurrentTab, list);
+            mStacks.set(mCurrentTab, list);
         }
         list.add(fragmentInfo);
+        fragmentInfo.setFragmentIndex(mFragmentIndex);
+        updateCoveredFragments(fragmentInfo.mAnimationSet, false);
+        commitTransaction();
+        onFragmentPresented(fragmentInfo, PresentReason.NEW_FRAGMENT);
+        if (mDehydrateCoveredFragments && (fragmentInfo.mType == Type.Replace) && !isBatching()) {
+            dehydrateCoveredInfos(list);
+        }
     }
 
     /**
@@ -174,7 +653,15 @@ public class TabStacker {
      * @return false if this is the last fragment of the current tab stack, true if there are several fragments.
      */
     public boolean onBackPressed() {
-        return pop(DismissReason.BACK, PresentReason.BACK, false);
+        long start = startOperation();
+        try {
+            coalesce();
+            boolean popped = pop(DismissReason.BACK, PresentReason.BACK, false);
+            commitTransaction();
+            return popped;
+        } finally {
+            endOperation(TabStackerMetrics.Operation.POP, start);
+        }
     }
 
     /**
@@ -188,11 +675,13 @@ public class TabStacker {
         if (getTabSize(mCurrentTab) <= 1) { // Don't pop last remaining fragment
             return false;
         }
-        ArrayList<FragmentInfo> infos = mStacks.get(mCurrentTab);
+        ArrayList<FragmentInfo> infos = getStack(mCurrentTab);
         FragmentInfo topFragmentInfo = infos.get(infos.size() - 1);
         if (topFragmentInfo.mType == Type.Add) {
             removeFragment(topFragmentInfo, instant);
-            onFragmentDismissed(topFragmentInfo.mFragment, dismissReason);
+            onFragmentDismissed(topFragmentInfo, dismissReason);
+        } else if (isBatching()) {
+            onFragmentDismissed(topFragmentInfo, dismissReason);
         } else {
 
             int currentIndex = infos.size() - 1;
@@ -205,52 +694,158 @@ public class TabStacker {
                 }
             }
 
-            FragmentInfo previousReplace = infos.get(lastPreviousReplaceIndex);
             AnimationSet topAnimationSet = instant ? null : topFragmentInfo.mAnimationSet;
             int inAnim = (topAnimationSet != null) ? topAnimationSet.getPopInAnim() : 0;
             int outAnim = (topAnimationSet != null) ? topAnimationSet.getPopOutAnim() : 0;
 
-            {
-                FragmentTransaction transaction = mFragmentManager.beginTransaction();
-                if ((inAnim != 0) && (outAnim != 0)) {
-                    transaction.setCustomAnimations(inAnim, outAnim);
-                }
-                transaction.replace(mFragmentHolder, previousReplace.mFragment);
-                transaction.commit();
-                onFragmentDismissed(topFragmentInfo.mFragment, dismissReason);
+            FragmentTransaction transaction = getTransaction();
+            if ((inAnim != 0) && (outAnim != 0)) {
+                transaction.setCustomAnimations(inAnim, outAnim);
+            } else {
+                transaction.setCustomAnimations(0, 0);
             }
-
-            {
-                for (int iAdd = lastPreviousReplaceIndex + 1; iAdd < currentIndex; ++iAdd) {
-                    FragmentTransaction transaction = mFragmentManager.beginTransaction();
-                    if ((inAnim != 0) && (outAnim != 0)) {
-                        transaction.setCustomAnimations(inAnim, outAnim);
-                    }
-                    transaction.add(mFragmentHolder, infos.get(iAdd).mFragment);
-                    transaction.commit();
-                }
+            hideFragment(transaction, topFragmentInfo, SwitchMode.REMOVE);
+            onFragmentDismissed(topFragmentInfo, dismissReason);
+            for (int iShow = lastPreviousReplaceIndex; iShow < currentIndex; ++iShow) {
+                showFragment(transaction, infos.get(iShow));
             }
         }
         infos.remove(topFragmentInfo);
+        topFragmentInfo.setFragmentIndex(null);
+        updateCoveredFragments();
         topFragmentInfo = getTopFragmentInfo(mCurrentTab);
         if (topFragmentInfo != null) {
-            onFragmentPresented(topFragmentInfo.mFragment, presentReason);
+            onFragmentPresented(topFragmentInfo, presentReason);
         }
         return true;
     }
 
     /**
-     * clears all the stack of the current tab
+     * clears all the stack of the current tab.
+     * Only the fragments on screen are dismissed, the covered ones have already been dismissed when they were covered
      */
     public void clearTabStack() {
-        notifyAllRemoved(mCurrentTab, DismissReason.CLEARING_STACK);
-        popAll(mCurrentTab);
-        ArrayList<FragmentInfo> infos = mStacks.get(mCurrentTab);
+        notifyVisibleRemoved(mCurrentTab, DismissReason.CLEARING_STACK);
+        popAll(mCurrentTab, SwitchMode.REMOVE);
+        commitTransaction();
+        ArrayList<FragmentInfo> infos = getStack(mCurrentTab);
         if (infos != null) {
+            setFragmentIndex(infos, null);
             infos.clear();
         }
     }
 
+    /**
+     * Sets the whole stack of a tab. The entries that are already at the bottom of the stack are kept as they are,
+     * only the entries that differ are removed or added, with a single FragmentTransaction.
+     * @param tabName Name of the tab stack, it does not need to be the current tab
+     * @param entries the new stack from bottom to top, the 1st entry is always a Replace without animation
+     */
+    public void setStack(@NonNull String tabName, @NonNull List<StackEntry> entries) {
+        setStack(registerTab(tabName), entries);
+    }
+
+    /**
+     * Sets the whole stack of a tab, see setStack(String, List)
+     * @param tab handle of the tab, given by registerTab(). It does not need to be the current tab
+     * @param entries the new stack from bottom to top, the 1st entry is always a Replace without animation
+     */
+    public void setStack(int tab, @NonNull List<StackEntry> entries) {
+        beginBatch();
+        try {
+            ArrayList<FragmentInfo> infos = getStack(tab);
+            if (infos == null) {
+                infos = new ArrayList<>();
+                mStacks.set(tab, infos);
+            }
+
+            // Keep the common part of the stacks
+            int common = 0;
+            while ((common < infos.size()) && (common < entries.size()) && entries.get(common).matches(infos.get(common), common == 0)) {
+                ++common;
+            }
+
+            // Remove the rest
+            if ((mTabSnapshots != null) && ((common < infos.size()) || (common < entries.size()))) {   // the top changes
+                mTabSnapshots.remove(tab);
+            }
+            for (int i = infos.size() - 1; i >= common; --i) {
+                FragmentInfo fragmentInfo = infos.remove(i);
+                fragmentInfo.setFragmentIndex(null);
+                onFragmentDismissed(fragmentInfo, DismissReason.CLEARING_STACK);
+            }
+
+            // Add the new entries
+            for (int i = common; i < entries.size(); ++i) {
+                FragmentInfo fragmentInfo = entries.get(i).createFragmentInfo(infos.isEmpty());
+                infos.add(fragmentInfo);
+                fragmentInfo.setFragmentIndex(mFragmentIndex);
+                onFragmentPresented(fragmentInfo, PresentReason.NEW_FRAGMENT);
+            }
+        } finally {
+            commitBatch();
+        }
+    }
+
+    /**
+     * Creates the root fragment of a tab which has no fragment yet, so that the first switchToTab() only has to
+     * put it on screen. The fragment is added to the FragmentManager off screen: hidden with its View built if
+     * inflateView is true, else detached so that only its instance is created. Best called when the main thread
+     * is idle, see prewarmWhenIdle(). During a batch, the fragment is added by commitBatch().
+     * @param tabName Name of the tab, which must not be the current tab
+     * @param factory creates the root fragment of the tab
+     * @param inflateView true to also build the View of the fragment
+     * @return true if the tab has been prewarmed, false if it already has fragments or if the FragmentManager cannot change
+     */
+    public boolean prewarm(@NonNull String tabName, @NonNull FragmentFactory factory, boolean inflateView) {
+        return prewarm(registerTab(tabName), factory, inflateView);
+    }
+
+    /**
+     * Creates the root fragment of a tab which has no fragment yet, see prewarm(String, FragmentFactory, boolean)
+     * @param tab handle of the tab, given by registerTab()
+     */
+    public boolean prewarm(int tab, @NonNull FragmentFactory factory, boolean inflateView) {
+        if ((tab == mCurrentTab) || !isEmpty(tab) || mFragmentManager.isStateSaved() || mFragmentManager.isDestroyed()) {
+            return false;
+        }
+        Fragment fragment = factory.createFragment();
+        checkFragmentInterface(fragment);
+        FragmentInfo fragmentInfo = new FragmentInfo(fragment, null, Type.Replace);
+        ArrayList<FragmentInfo> infos = getStack(tab);
+        if (infos == null) {
+            infos = new ArrayList<>();
+            mStacks.set(tab, infos);
+        }
+        infos.add(fragmentInfo);
+        fragmentInfo.setFragmentIndex(mFragmentIndex);
+        SwitchMode parkMode = inflateView ? SwitchMode.HIDE : SwitchMode.DETACH;
+        if (isBatching()) {
+            mBatch.mParkModes.put(fragmentInfo, parkMode);
+        } else {
+            FragmentTransaction transaction = getTransaction();
+            setAnimations(transaction, null, true);
+            showFragment(transaction, fragmentInfo);
+            hideFragment(transaction, fragmentInfo, parkMode);
+            commitTransaction();
+        }
+        return true;
+    }
+
+    /**
+     * Prewarms a tab the next time the main thread is idle, see prewarm(String, FragmentFactory, boolean).
+     * Must be called from the main thread.
+     */
+    public void prewarmWhenIdle(@NonNull final String tabName, @NonNull final FragmentFactory factory, final boolean inflateView) {
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                prewarm(tabName, factory, inflateView);
+                return false;   // only once
+            }
+        });
+    }
+
     /**
      * pop all the fragments from the current stack except the 1st fragment, and remove them from the screen
      * @param instant removes the fragments instantly if true, else use animations if some are defined
@@ -271,8 +866,17 @@ public class TabStacker {
      * @return the number of popped fragments
      */
     public int pop(int count, boolean instant) {
+        long start = startOperation();
+        try {
+            return doPop(count, instant);
+        } finally {
+            endOperation(TabStackerMetrics.Operation.POP, start);
+        }
+    }
+
+    private int doPop(int count, boolean instant) {
         int nbPopped = 0;
-        ArrayList<FragmentInfo> infos = mStacks.get(mCurrentTab);
+        ArrayList<FragmentInfo> infos = getStack(mCurrentTab);
         if ((infos == null) || infos.isEmpty()) {
             return nbPopped;
         }
@@ -280,106 +884,748 @@ public class TabStacker {
             if (pop(DismissReason.POP, PresentReason.POP, instant)) {
                 ++nbPopped;
             } else {
-                return nbPopped;
+                break;
             }
         }
+        commitTransaction();
         return nbPopped;
     }
 
-    private boolean isEmpty(String tabName) {
-        return (getTabSize(tabName) == 0);
+    /**
+     * Starts a batch: the following operations only change the stacks, until commitBatch() is called.
+     * Batches can be nested, only the outer commitBatch() applies the changes.
+     */
+    public void beginBatch() {
+        if (mBatch == null) {
+            mBatch = new Batch();
+            mBatch.mTab = mCurrentTab;
+            mBatch.mTopInfo = getTopFragmentInfo(mCurrentTab);
+            mBatch.mVisibleInfos = getVisibleInfos(mCurrentTab);
+            for (ArrayList<FragmentInfo> infos : mStacks) {
+                if (infos == null) {
+                    continue;
+                }
+                for (FragmentInfo info : infos) {
+                    if (info.mState != FragmentInfo.State.REMOVED) {
+                        mBatch.mLiveInfos.add(info);
+                    }
+                }
+            }
+        }
+        ++mBatch.mDepth;
     }
 
-    private FragmentInfo getTopFragmentInfo(String tabName) {
-        ArrayList<FragmentInfo> infos = mStacks.get(tabName);
-        if ((infos == null) || infos.isEmpty()) {
-            return null;
-        } else {
-            return infos.get(infos.size() - 1);
+    /**
+     * Ends a batch started with beginBatch(). All the changes done during the batch are applied with
+     * a single FragmentTransaction, and only the fragments that are visible at the end of the batch are presented.
+     */
+    public void commitBatch() {
+        if (mBatch == null) {
+            throw new IllegalStateException("commitBatch() called without beginBatch()");
         }
-    }
+        if (--mBatch.mDepth > 0) {
+            return;
+        }
+        Batch batch = mBatch;
+        mBatch = null;
 
-    private void popAll(String tabName) {
-        ArrayList<FragmentInfo> infos = mStacks.get(tabName);
-        if (infos != null) {
-            for (int i = infos.size() - 1; i > 0; --i) {
-                FragmentInfo topInfo = infos.get(i);
-                removeFragment(topInfo, true);
+        ArrayList<FragmentInfo> visibleInfos = getVisibleInfos(mCurrentTab);
+        FragmentInfo topInfo = getTopFragmentInfo(mCurrentTab);
+        HashSet<FragmentInfo> stackedInfos = new HashSet<>();
+        for (ArrayList<FragmentInfo> infos : mStacks) {
+            if (infos != null) {
+                stackedInfos.addAll(infos);
             }
         }
-    }
-
-    private void pushAll(String tabName) {
-        ArrayList<FragmentInfo> infos = mStacks.get(tabName);
-        if ((infos != null) && (infos.size() > 0)) {
+        ArrayList<FragmentInfo> currentInfos = getStack(mCurrentTab);
+        if (currentInfos != null) {
+            stackedInfos.removeAll(currentInfos);   // only keeps the fragments of the other tabs
+        }
 
-            // Search the last "replace" fragment so that we start restoring from him
-            int lastReplace = 0;
-            for (int i = infos.size() - 1; i > 0; --i) {
-                FragmentInfo info = infos.get(i);
-                if (info.mType == Type.Replace) {
-                    lastReplace = i;
-                    break;
+        // Fragments that are not visible anymore: parked if they belong to another tab, else removed.
+        // The fragments of other tabs which were already parked, for example prewarmed, stay as they are.
+        for (FragmentInfo info : batch.mLiveInfos) {
+            if (!visibleInfos.contains(info) && (info.mState != FragmentInfo.State.REMOVED)) {
+                boolean stacked = stackedInfos.contains(info);
+                if (stacked && (info.mState != FragmentInfo.State.ADDED)) {
+                    continue;
                 }
+                SwitchMode switchMode = stacked ? mSwitchMode : SwitchMode.REMOVE;
+                FragmentTransaction transaction = getTransaction();
+                setAnimations(transaction, null, true);
+                hideFragment(transaction, info, switchMode);
             }
-            // Restore the last "replace" fragment
-            FragmentInfo replaceInfo = infos.get(lastReplace);
-            replaceFragment(replaceInfo, true);
-
-            // Eventually adds all the other "add" fragments
-            for (int i = lastReplace + 1; i < infos.size(); ++i) {
-                FragmentInfo info = infos.get(i);
-                addFragment(info, true);
+        }
+        // Fragments that are visible now
+        for (FragmentInfo info : visibleInfos) {
+            if (info.mState != FragmentInfo.State.ADDED) {
+                FragmentTransaction transaction = getTransaction();
+                setAnimations(transaction, null, true);
+                showFragment(transaction, info);
             }
         }
-    }
-
-    private void removeFragment(FragmentInfo fragmentInfo, boolean instant) {
-        FragmentTransaction fragmentTransaction = mFragmentManager.beginTransaction();
-        if (!instant && fragmentInfo.mAnimationSet != null) {
-            fragmentInfo.mAnimationSet.addToTransaction(fragmentTransaction);
-//            fragmentTransaction.setCustomAnimations(fragmentInfo.mAnimationSet.getPopInAnim(), fragmentInfo.mAnimationSet.getPopOutAnim());
+        // Fragments prewarmed during the batch, parked if they are still in another tab
+        for (FragmentInfo info : batch.mParkModes.keySet()) {
+            if (stackedInfos.contains(info) && (info.mState == FragmentInfo.State.REMOVED) && info.isInstantiated()) {
+                FragmentTransaction transaction = getTransaction();
+                setAnimations(transaction, null, true);
+                showFragment(transaction, info);
+                hideFragment(transaction, info, batch.mParkModes.get(info));
+            }
+        }
+        updateCoveredFragments();
+        evictTabs();
+        commitTransaction();
+        if (batch.mTab != mCurrentTab) {
+            recordTransition(batch.mTab, mCurrentTab);
         }
-        fragmentTransaction.remove(fragmentInfo.mFragment);
-        fragmentTransaction.commit();
-    }
 
-    private void replaceFragment(FragmentInfo fragmentInfo, boolean instant) {
-        FragmentTransaction fragmentTransaction = mFragmentManager.beginTransaction();
-        if (!instant && fragmentInfo.mAnimationSet != null) {
-            fragmentInfo.mAnimationSet.addToTransaction(fragmentTransaction);
-//            fragmentTransaction.setCustomAnimations(fragmentInfo.mAnimationSet.getPushInAnim(), fragmentInfo.mAnimationSet.getPushOutAnim());
+        // Only notifies the net changes: the fragments which were visible or top, and which are not anymore
+        for (int i = batch.mVisibleInfos.size() - 1; i >= 0; --i) {
+            FragmentInfo info = batch.mVisibleInfos.get(i);
+            if (!visibleInfos.contains(info) || ((info == batch.mTopInfo) && (info != topInfo))) {
+                DismissReason reason = batch.mDismissReasons.get(info);
+                dispatchDismissed(batch.mTab, info, (reason != null) ? reason : DismissReason.LEAVING_STACK);
+            }
+        }
+        for (FragmentInfo info : visibleInfos) {
+            if (!batch.mVisibleInfos.contains(info) || ((info == topInfo) && (info != batch.mTopInfo))) {
+                PresentReason reason = batch.mPresentReasons.get(info);
+                onFragmentPresented(info, (reason != null) ? reason : PresentReason.RESTORING_STACK);
+            }
         }
-        fragmentTransaction.replace(mFragmentHolder, fragmentInfo.mFragment);
-        fragmentTransaction.commit();
-    }
 
-    private void addFragment(FragmentInfo fragmentInfo, boolean instant) {
-        FragmentTransaction fragmentTransaction = mFragmentManager.beginTransaction();
-        if (!instant && fragmentInfo.mAnimationSet != null) {
-            fragmentInfo.mAnimationSet.addToTransaction(fragmentTransaction);
-//            fragmentTransaction.setCustomAnimations(fragmentInfo.mAnimationSet.getPushInAnim(), fragmentInfo.mAnimationSet.getPushOutAnim());
+        if (mDehydrateCoveredFragments && (currentInfos != null)) {
+            dehydrateCoveredInfos(currentInfos);
         }
-        fragmentTransaction.add(mFragmentHolder, fragmentInfo.mFragment);
-        fragmentTransaction.commit();
     }
 
-    private void notifyAllRemoved(String tabName, DismissReason reason) {
-        ArrayList<FragmentInfo> infos = mStacks.get(tabName);
-        if (infos != null) {
-            for (int i = infos.size() - 1; i >= 0; --i) {
-                FragmentInfo info = infos.get(i);
-                onFragmentDismissed(info.mFragment, reason);
-            }
+    /**
+     * Runs several operations as a single batch (see beginBatch() and commitBatch())
+     * @param operations the operations to run on this TabStacker
+     */
+    public void runBatch(@NonNull Runnable operations) {
+        beginBatch();
+        try {
+            operations.run();
+        } finally {
+            commitBatch();
         }
     }
 
-    private void notifyAllRestored(String tabName, PresentReason reason) {
-        ArrayList<FragmentInfo> infos = mStacks.get(tabName);
+    /**
+     * Adds a listener notified of the fragments presented and dismissed in all the tabs
+     */
+    public void addListener(@NonNull TabStackListener listener) {
+        mListeners = addListener(mListeners, listener);
+    }
+
+    /**
+     * Adds a listener notified of the fragments presented and dismissed in a tab
+     * @param tab handle of the tab, given by registerTab()
+     */
+    public void addListener(int tab, @NonNull TabStackListener listener) {
+        mTabListeners.set(tab, addListener(mTabListeners.get(tab), listener));
+    }
+
+    public void removeListener(@NonNull TabStackListener listener) {
+        mListeners = removeListener(mListeners, listener);
+    }
+
+    public void removeListener(int tab, @NonNull TabStackListener listener) {
+        mTabListeners.set(tab, removeListener(mTabListeners.get(tab), listener));
+    }
+
+    // The arrays are never changed once set, so that listeners can be added or removed during a notification
+    private static TabStackListener[] addListener(TabStackListener[] listeners, TabStackListener listener) {
+        TabStackListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+        newListeners[listeners.length] = listener;
+        return newListeners;
+    }
+
+    private static TabStackListener[] removeListener(TabStackListener[] listeners, TabStackListener listener) {
+        for (int i = 0; i < listeners.length; ++i) {
+            if (listeners[i] == listener) {
+                if (listeners.length == 1) {
+                    return NO_LISTENERS;
+                }
+                TabStackListener[] newListeners = new TabStackListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, newListeners.length - i);
+                return newListeners;
+            }
+        }
+        return listeners;
+    }
+
+    /**
+     * Runs a command on the main thread. Can be called from any thread, for example when a deep link is resolved
+     * by a worker thread. The commands are run in the order they are posted, and all the commands posted before
+     * the main thread runs them are applied as a single batch (see beginBatch()). Once the state is saved they are
+     * kept until onResume(), and they are dropped if the FragmentManager is destroyed.
+     * @param command the operations to run on this TabStacker
+     */
+    public void post(@NonNull Command command) {
+        mCommands.add(command);
+        if (mDrainPosted.compareAndSet(false, true)) {
+            mMainHandler.post(mDrainRunnable);
+        }
+    }
+
+    private void drainCommands() {
+        mDrainPosted.set(false);    // commands posted from now on need another drain, if they are not run by this one
+        if (mFragmentManager.isDestroyed()) {
+            mCommands.clear();
+            return;
+        }
+        if (mFragmentManager.isStateSaved()) {
+            return;     // kept until onResume()
+        }
+        Command command = mCommands.poll();
+        if (command == null) {
+            return;
+        }
+        beginBatch();
+        try {
+            while (command != null) {
+                command.run(this);
+                command = mCommands.poll();
+            }
+        } finally {
+            commitBatch();
+        }
+    }
+
+    private boolean isBatching() {
+        return (mBatch != null);
+    }
+
+    /**
+     * Records a tab switch for the predictions, except the one from the initial tab which is not chosen by the user
+     */
+    private void recordTransition(int fromTab, int toTab) {
+        if (fromTab != INITIAL_TAB) {
+            mTransitions.record(fromTab, toTab);
+        }
+    }
+
+    /**
+     * @return the start time of the outer operation, or NOT_MEASURED
+     */
+    private long startOperation() {
+        if ((mOperationDepth++ == 0) && (mMetrics != null)) {
+            return mMetrics.start();
+        }
+        return TabStackerMetrics.NOT_MEASURED;
+    }
+
+    private void endOperation(TabStackerMetrics.Operation operation, long start) {
+        if ((--mOperationDepth == 0) && (mMetrics != null) && (start != TabStackerMetrics.NOT_MEASURED)) {
+            mMetrics.end(operation, start);
+        }
+    }
+
+    /**
+     * Opens the batch which collects the navigation until the next turn of the main loop, if coalescing is enabled
+     */
+    private void coalesce() {
+        if ((mCoalesceHandler != null) && !mCoalescing) {
+            beginBatch();
+            mCoalescing = true;
+            mCoalesceHandler.post(mCoalesceRunnable);
+        }
+    }
+
+    /**
+     * Applies the navigation collected by coalesce() now. Once the state is saved the FragmentManager cannot change,
+     * so the batch stays open until onResume().
+     */
+    private void flushCoalesced() {
+        if (!mCoalescing) {
+            return;
+        }
+        if (mCoalesceHandler != null) {
+            mCoalesceHandler.removeCallbacks(mCoalesceRunnable);
+        }
+        if (!mFragmentManager.isStateSaved()) {
+            mCoalescing = false;
+            commitBatch();
+        }
+    }
+
+    /**
+     * State of the stacks when a batch started, and the last callback reasons recorded during the batch
+     */
+    private static class Batch {
+        int mDepth;
+        int mTab;                   // current tab when the batch started
+        FragmentInfo mTopInfo;
+        ArrayList<FragmentInfo> mVisibleInfos;
+        ArrayList<FragmentInfo> mLiveInfos = new ArrayList<>();     // fragments in the FragmentManager
+        HashMap<FragmentInfo, PresentReason> mPresentReasons = new HashMap<>();
+        HashMap<FragmentInfo, DismissReason> mDismissReasons = new HashMap<>();
+        HashMap<FragmentInfo, SwitchMode> mParkModes = new HashMap<>();         // fragments prewarmed during the batch
+    }
+
+    private boolean isEmpty(int tab) {
+        return (getTabSize(tab) == 0);
+    }
+
+    private FragmentInfo getTopFragmentInfo(int tab) {
+        ArrayList<FragmentInfo> infos = getStack(tab);
+        if ((infos == null) || infos.isEmpty()) {
+            return null;
+        } else {
+            return infos.get(infos.size() - 1);
+        }
+    }
+
+    /**
+     * Takes all the fragments of a tab off the screen
+     * @param tab handle of the tab
+     * @param switchMode how to take them off: removed, detached or hidden
+     */
+    private void popAll(int tab, SwitchMode switchMode) {
+        ArrayList<FragmentInfo> infos = getStack(tab);
+        if ((infos != null) && !isBatching()) {
+            for (int i = infos.size() - 1; i >= 0; --i) {
+                FragmentInfo topInfo = infos.get(i);
+                if (topInfo.mState != FragmentInfo.State.REMOVED) {
+                    FragmentTransaction transaction = getTransaction();
+                    setAnimations(transaction, null, true);
+                    hideFragment(transaction, topInfo, switchMode);
+                }
+            }
+        }
+    }
+
+    private void pushAll(int tab) {
+        ArrayList<FragmentInfo> infos = getStack(tab);
+        if ((infos != null) && (infos.size() > 0) && !isBatching()) {
+
+            // Search the last "replace" fragment so that we start restoring from him
+            int lastReplace = getLastReplaceIndex(infos);
+            // Restore the last "replace" fragment, and eventually all the other "add" fragments.
+            // Fragments that were detached or hidden when leaving the tab are simply attached or shown again
+            FragmentTransaction transaction = getTransaction();
+            setAnimations(transaction, null, true);
+            for (int i = lastReplace; i < infos.size(); ++i) {
+                FragmentInfo info = infos.get(i);
+                showFragment(transaction, info);
+            }
+            updateCoveredFragments();
+        }
+    }
+
+    /**
+     * @return the index of the last "replace" fragment of the stack, which is the lowest visible fragment
+     */
+    private static int getLastReplaceIndex(ArrayList<FragmentInfo> infos) {
+        for (int i = infos.size() - 1; i > 0; --i) {
+            FragmentInfo info = infos.get(i);
+            if (info.mType == Type.Replace) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * When covered fragments are detached, detaches the fragments of the current tab which are below the top one,
+     * and makes sure that the top one is attached
+     */
+    private void updateCoveredFragments() {
+        updateCoveredFragments(null, true);
+    }
+
+    /**
+     * @param animationSet animations of the fragment which has just been pushed, so that the covered fragments
+     * are detached with its push out animation instead of vanishing while the new fragment comes in
+     */
+    private void updateCoveredFragments(AnimationSet animationSet, boolean instant) {
+        ArrayList<FragmentInfo> infos = getStack(mCurrentTab);
+        if (!mDetachCoveredFragments || isBatching() || (infos == null) || infos.isEmpty()) {
+            return;
+        }
+        int topIndex = infos.size() - 1;
+        for (int i = 0; i < topIndex; ++i) {
+            FragmentInfo info = infos.get(i);
+            if (info.mState == FragmentInfo.State.ADDED) {
+                FragmentTransaction transaction = getTransaction();
+                setAnimations(transaction, animationSet, instant);
+                hideFragment(transaction, info, SwitchMode.DETACH);
+            }
+        }
+        FragmentInfo topInfo = infos.get(topIndex);
+        if (topInfo.mState != FragmentInfo.State.ADDED) {
+            FragmentTransaction transaction = getTransaction();
+            setAnimations(transaction, null, true);
+            showFragment(transaction, topInfo);
+        }
+    }
+
+    /**
+     * Moves a tab at the end of the tab usage list
+     */
+    private void useTab(int tab) {
+        mTabUsage.remove(Integer.valueOf(tab));
+        mTabUsage.add(tab);
+    }
+
+    /**
+     * Drops the fragments of the least recently used tabs, so that at most mMaxLiveTabs tabs have live fragments
+     */
+    private void evictTabs() {
+        if (mMaxLiveTabs <= 0) {
+            return;
+        }
+        useTab(mCurrentTab);
+        int liveTabs = 0;
+        for (int i = mTabUsage.size() - 1; i >= 0; --i) {
+            int tab = mTabUsage.get(i);
+            ArrayList<FragmentInfo> infos = mStacks.get(tab);    // pending stacks have no live fragments
+            if ((infos == null) || !hasInstantiatedInfos(infos) || mWarmTabs.contains(tab)) {
+                continue;
+            }
+            ++liveTabs;
+            if (liveTabs > mMaxLiveTabs) {
+                dehydrateInfos(infos, true);
+            }
+        }
+    }
+
+    /**
+     * Preloads the predicted tabs the next time the main thread is idle, see setPredictiveTabs()
+     */
+    private void schedulePredictedTabs() {
+        if ((mPredictedTabs <= 0) || mPredictionScheduled) {
+            return;
+        }
+        mPredictionScheduled = true;
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                mPredictionScheduled = false;
+                warmPredictedTabs();
+                return false;   // only once
+            }
+        });
+    }
+
+    private void warmPredictedTabs() {
+        if ((mPredictedTabs <= 0) || isBatching() || mFragmentManager.isStateSaved() || mFragmentManager.isDestroyed()) {
+            return;
+        }
+        HashSet<Integer> previousWarmTabs = mWarmTabs;
+        mWarmTabs = new HashSet<>();
+        SwitchMode parkMode = (mSwitchMode == SwitchMode.HIDE) ? SwitchMode.HIDE : SwitchMode.DETACH;
+        for (int tab : mTransitions.getMostLikely(mCurrentTab, mPredictedTabs)) {
+            if (!isEmpty(tab)) {
+                for (FragmentInfo info : getVisibleInfos(tab)) {
+                    if (info.mState == FragmentInfo.State.REMOVED) {
+                        FragmentTransaction transaction = getTransaction();
+                        setAnimations(transaction, null, true);
+                        showFragment(transaction, info);
+                        hideFragment(transaction, info, parkMode);
+                    }
+                }
+            } else {
+                final String tabName = getTabName(tab);
+                FragmentFactory factory = new FragmentFactory() {
+                    @Override
+                    public Fragment createFragment() {
+                        return mRootFactory.createRootFragment(tabName);
+                    }
+                };
+                if ((mRootFactory == null) || !prewarm(tab, factory, parkMode == SwitchMode.HIDE)) {
+                    continue;
+                }
+            }
+            mWarmTabs.add(tab);
+        }
+
+        // Tabs which are not predicted anymore: dropped if they were only preloaded, else live as any used tab
+        for (int tab : previousWarmTabs) {
+            ArrayList<FragmentInfo> infos = mStacks.get(tab);
+            if (!mWarmTabs.contains(tab) && (tab != mCurrentTab) && !mTabUsage.contains(tab) && (infos != null)) {
+                dehydrateInfos(infos, true);
+            }
+        }
+        evictTabs();
+        commitTransaction();
+    }
+
+    private static boolean hasInstantiatedInfos(ArrayList<FragmentInfo> infos) {
+        for (FragmentInfo info : infos) {
+            if (info.isInstantiated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Dehydrates all the fragments of a stack which is not the current one
+     * @param removeParked true to first remove the fragments that are still detached or hidden in the FragmentManager,
+     *                     else they stay live
+     */
+    private void dehydrateInfos(ArrayList<FragmentInfo> infos, boolean removeParked) {
+        for (FragmentInfo info : infos) {
+            if (removeParked && (info.mState != FragmentInfo.State.REMOVED)) {
+                FragmentTransaction transaction = getTransaction();
+                setAnimations(transaction, null, true);
+                hideFragment(transaction, info, SwitchMode.REMOVE);
+            }
+            info.dehydrate();
+        }
+    }
+
+    /**
+     * Dehydrates the fragments of a stack which are below its last "replace" fragment
+     */
+    private static void dehydrateCoveredInfos(ArrayList<FragmentInfo> infos) {
+        int lastReplace = getLastReplaceIndex(infos);
+        for (int i = 0; i < lastReplace; ++i) {
+            infos.get(i).dehydrate();
+        }
+    }
+
+    /**
+     * @return the fragments of a tab that are on screen when the tab is the current one, from bottom to top
+     */
+    private ArrayList<FragmentInfo> getVisibleInfos(int tab) {
+        ArrayList<FragmentInfo> visibleInfos = new ArrayList<>();
+        ArrayList<FragmentInfo> infos = getStack(tab);
+        if ((infos != null) && !infos.isEmpty()) {
+            for (int i = getLastReplaceIndex(infos); i < infos.size(); ++i) {
+                visibleInfos.add(infos.get(i));
+            }
+        }
+        return visibleInfos;
+    }
+
+    private void removeFragment(FragmentInfo fragmentInfo, boolean instant) {
+        if (isBatching()) {
+            return;
+        }
+        FragmentTransaction fragmentTransaction = getTransaction();
+        setAnimations(fragmentTransaction, fragmentInfo.mAnimationSet, instant);
+        hideFragment(fragmentTransaction, fragmentInfo, SwitchMode.REMOVE);
+    }
+
+    private void replaceFragment(FragmentInfo fragmentInfo, boolean instant) {
+        if (isBatching()) {
+            return;
+        }
+        FragmentTransaction fragmentTransaction = getTransaction();
+        setAnimations(fragmentTransaction, fragmentInfo.mAnimationSet, instant);
+        // Not a FragmentTransaction.replace() as it would also remove the detached / hidden fragments of the other tabs
+        ArrayList<FragmentInfo> infos = getStack(mCurrentTab);
         if (infos != null) {
-            for (FragmentInfo info : infos) {
-                Fragment fragment = info.mFragment;
-                onFragmentPresented(fragment, reason);
+            for (int i = infos.size() - 1; i >= 0; --i) {
+                FragmentInfo info = infos.get(i);
+                if (info.mState != FragmentInfo.State.REMOVED) {
+                    hideFragment(fragmentTransaction, info, SwitchMode.REMOVE);
+                }
+            }
+        }
+        showFragment(fragmentTransaction, fragmentInfo);
+    }
+
+    private void addFragment(FragmentInfo fragmentInfo, boolean instant) {
+        if (isBatching()) {
+            return;
+        }
+        FragmentTransaction fragmentTransaction = getTransaction();
+        setAnimations(fragmentTransaction, fragmentInfo.mAnimationSet, instant);
+        showFragment(fragmentTransaction, fragmentInfo);
+    }
+
+    /**
+     * @return the transaction of the current operation, created if necessary
+     */
+    private FragmentTransaction getTransaction() {
+        if (mTransaction == null) {
+            mTransaction = mFragmentManager.beginTransaction();
+            mTransaction.setReorderingAllowed(true);
+        }
+        return mTransaction;
+    }
+
+    /**
+     * Commits the transaction of the current operation, if anything has changed.
+     * During a batch, the transaction is only committed by commitBatch().
+     */
+    private void commitTransaction() {
+        if (isBatching()) {
+            return;
+        }
+        if (mTransaction != null) {
+            mTransaction.commit();
+            mTransaction = null;
+            if (mMetrics != null) {
+                mMetrics.onCommit();
+            }
+            scheduleSnapshot();
+        }
+    }
+
+    private void scheduleSnapshot() {
+        if ((mSnapshotFile != null) && !mSnapshotPending) {
+            mSnapshotPending = true;
+            mSnapshotHandler.postDelayed(mSnapshotRunnable, SNAPSHOT_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes the periodic snapshot. The Fragments are not asked for their data: only the data kept while
+     * they are dismissed, or given when they have been dehydrated, is saved. saveInstance() saves it all.
+     */
+    private void writeSnapshot() {
+        Bundle bundle = saveState(false, false);
+        writeSnapshot(bundle, (mSpillStore != null) ? getSpillKeys() : null);
+    }
+
+    /**
+     * @param bundle a Bundle given by saveState()
+     * @param spillKeys the keys of the spilled data referenced by the Bundle, null without SpillStore
+     */
+    private void writeSnapshot(Bundle bundle, HashSet<String> spillKeys) {
+        mSnapshotHandler.removeCallbacks(mSnapshotRunnable);
+        mSnapshotPending = false;
+        mSnapshotFile.write(bundle);
+        if (spillKeys != null) {
+            mSnapshotSpillKeys = spillKeys;
+        }
+    }
+
+    /**
+     * @return the keys of the spilled data referenced by the stacks, as saved by saveState() without spilling
+     */
+    private HashSet<String> getSpillKeys() {
+        HashSet<String> spillKeys = new HashSet<>();
+        for (int tab = 0; tab < mStacks.size(); ++tab) {
+            byte[] pendingData = mPendingStacks.get(tab);
+            ArrayList<FragmentInfo> infos = mStacks.get(tab);
+            if (pendingData != null) {
+                for (byte[] entry : StackData.unmarshall(pendingData)) {
+                    String spillKey = FragmentInfo.getSpillKey(entry);
+                    if (spillKey != null) {
+                        spillKeys.add(spillKey);
+                    }
+                }
+            } else if (infos != null) {
+                for (FragmentInfo fragmentInfo : infos) {
+                    String spillKey = fragmentInfo.getSpillKey();
+                    if (spillKey != null) {
+                        spillKeys.add(spillKey);
+                    }
+                }
+            }
+        }
+        return spillKeys;
+    }
+
+    /**
+     * Sets the animations of the next changes of the transaction.
+     * As a transaction holds several changes, the animations must be reset when there are none.
+     */
+    private void setAnimations(FragmentTransaction transaction, AnimationSet animationSet, boolean instant) {
+        if (!instant && (animationSet != null)) {
+            animationSet.addToTransaction(transaction);
+        } else {
+            transaction.setCustomAnimations(0, 0, 0, 0);
+        }
+    }
+
+    /**
+     * Puts a fragment on screen: added if it is not in the FragmentManager, else attached or shown again
+     */
+    private void showFragment(FragmentTransaction transaction, FragmentInfo fragmentInfo) {
+        switch (fragmentInfo.mState) {
+            case REMOVED:
+                if ((mMetrics != null) && (fragmentInfo.mFragment == null)) {
+                    mMetrics.onInstantiated();
+                }
+                transaction.add(mFragmentHolder, fragmentInfo.getFragment());
+                break;
+            case DETACHED:
+                transaction.attach(fragmentInfo.mFragment);
+                break;
+            case HIDDEN:
+                transaction.show(fragmentInfo.mFragment);
+                break;
+            default:
+                break;
+        }
+        fragmentInfo.mState = FragmentInfo.State.ADDED;
+    }
+
+    /**
+     * Takes a fragment off screen
+     * @param switchMode REMOVE to remove it from the FragmentManager, DETACH or HIDE to keep it there
+     */
+    private void hideFragment(FragmentTransaction transaction, FragmentInfo fragmentInfo, SwitchMode switchMode) {
+        if (fragmentInfo.mState == FragmentInfo.State.REMOVED) {
+            return;
+        }
+        switch (switchMode) {
+            case DETACH:
+                if (fragmentInfo.mState == FragmentInfo.State.ADDED) {
+                    transaction.detach(fragmentInfo.mFragment);
+                    fragmentInfo.mState = FragmentInfo.State.DETACHED;
+                }
+                break;
+            case HIDE:
+                if (fragmentInfo.mState == FragmentInfo.State.ADDED) {
+                    transaction.hide(fragmentInfo.mFragment);
+                    fragmentInfo.mState = FragmentInfo.State.HIDDEN;
+                }
+                break;
+            default:
+                transaction.remove(fragmentInfo.mFragment);
+                fragmentInfo.mState = FragmentInfo.State.REMOVED;
+                break;
+        }
+    }
+
+    /**
+     * Removes the fragments that the FragmentManager restored by itself in the place holder,
+     * as the TabStacker creates its own instances when restoring.
+     */
+    private void removeRestoredFragments() {
+        List<Fragment> fragments = mFragmentManager.getFragments();
+        if ((fragments == null) || fragments.isEmpty()) {
+            return;
+        }
+        for (Fragment fragment : fragments) {
+            if ((fragment != null) && (fragment.getId() == mFragmentHolder)) {
+                getTransaction().remove(fragment);
+            }
+        }
+    }
+
+    /**
+     * Notifies the fragments which are on screen, the covered ones have already been dismissed
+     */
+    private void notifyVisibleRemoved(int tab, DismissReason reason) {
+        ArrayList<FragmentInfo> infos = getStack(tab);
+        if ((infos != null) && !infos.isEmpty()) {
+            int lastReplace = getLastReplaceIndex(infos);
+            for (int i = infos.size() - 1; i >= lastReplace; --i) {
+                onFragmentDismissed(infos.get(i), reason);
+            }
+        }
+    }
+
+    /**
+     * Notifies the fragments which are back on screen, the covered ones stay dismissed
+     */
+    private void notifyVisibleRestored(int tab, PresentReason reason) {
+        ArrayList<FragmentInfo> infos = getStack(tab);
+        if ((infos != null) && !infos.isEmpty()) {
+            for (int i = getLastReplaceIndex(infos); i < infos.size(); ++i) {
+                onFragmentPresented(infos.get(i), reason);
             }
         }
     }
@@ -400,16 +1646,54 @@ public class TabStacker {
         POP                 // The programmer popped some fragments
     }
 
-    private void onFragmentPresented(Fragment fragment, PresentReason reason) {
+    private void onFragmentPresented(FragmentInfo fragmentInfo, PresentReason reason) {
+        if (isBatching()) {
+            mBatch.mPresentReasons.put(fragmentInfo, reason);
+            return;
+        }
+        fragmentInfo.invalidateInstance();
+        Fragment fragment = fragmentInfo.mFragment;
         if (fragment instanceof TabStackInterface) {
             ((TabStackInterface) fragment).onTabFragmentPresented(reason);
         }
+        TabStackListener[] listeners = mListeners;
+        for (TabStackListener listener : listeners) {
+            listener.onFragmentPresented(mCurrentTab, fragment, reason);
+        }
+        listeners = mTabListeners.get(mCurrentTab);
+        for (TabStackListener listener : listeners) {
+            listener.onFragmentPresented(mCurrentTab, fragment, reason);
+        }
+    }
+
+    private void onFragmentDismissed(FragmentInfo fragmentInfo, DismissReason reason) {
+        if (isBatching()) {
+            mBatch.mDismissReasons.put(fragmentInfo, reason);
+            return;
+        }
+        dispatchDismissed(mCurrentTab, fragmentInfo, reason);
     }
 
-    private void onFragmentDismissed(Fragment fragment, DismissReason reason) {
+    /**
+     * @param tab handle of the tab the fragment was on screen in
+     */
+    private void dispatchDismissed(int tab, FragmentInfo fragmentInfo, DismissReason reason) {
+        Fragment fragment = fragmentInfo.mFragment;
         if (fragment instanceof TabStackInterface) {
             ((TabStackInterface) fragment).onTabFragmentDismissed(reason);
         }
+        TabStackListener[] listeners = mListeners;
+        for (TabStackListener listener : listeners) {
+            listener.onFragmentDismissed(tab, fragment, reason);
+        }
+        listeners = mTabListeners.get(tab);
+        for (TabStackListener listener : listeners) {
+            listener.onFragmentDismissed(tab, fragment, reason);
+        }
+        if (mSaveOnDismiss && (fragment != null)
+                && ((reason == DismissReason.REPLACED) || (reason == DismissReason.OVERLAPPED) || (reason == DismissReason.LEAVING_STACK))) {
+            fragmentInfo.keepInstance();
+        }
     }
 
     /**
@@ -432,44 +1716,73 @@ public class TabStacker {
         void onRestoreTabFragmentInstance(Bundle savedInstanceState);
     }
 
+    /**
+     * Listens to the fragments presented and dismissed, see addListener(). Only the fragments which are visible
+     * (the top one and the ones it overlaps down to the last Replace) are presented.
+     */
+    public interface TabStackListener {
+        /**
+         * @param tab handle of the tab, see registerTab()
+         * @param fragment the fragment which is presented on screen
+         */
+        void onFragmentPresented(int tab, Fragment fragment, PresentReason reason);
+
+        /**
+         * @param tab handle of the tab, see registerTab()
+         * @param fragment the fragment which is dismissed from the screen, null if its instance has already been dropped
+         */
+        void onFragmentDismissed(int tab, @Nullable Fragment fragment, DismissReason reason);
+    }
+
+    /**
+     * Creates the root fragment of a tab, see prewarm()
+     */
+    public interface FragmentFactory {
+        Fragment createFragment();
+    }
+
+    /**
+     * Operations run on the main thread, see post()
+     */
+    public interface Command {
+        void run(TabStacker tabStacker);
+    }
+
+    /**
+     * Creates the root fragment of any tab, see setPredictiveTabs()
+     */
+    public interface TabRootFactory {
+        Fragment createRootFragment(String tabName);
+    }
+
     private void checkFragmentInterface(Fragment fragment) {
-        if (!(fragment instanceof TabStackInterface)) {
-            String className = fragment.getClass().getName();
+        checkFragmentClass(fragment.getClass());
+    }
+
+    static void checkFragmentClass(Class<?> fragmentClass) {
+        if (!TabStackInterface.class.isAssignableFrom(fragmentClass)) {
+            String className = fragmentClass.getName();
             throw new RuntimeException(className + " must implement TabStackInterface");
         }
     }
 
+    private static final String BUNDLE_FORMAT_VERSION = "FormatVersion";
     private static final String BUNDLE_CURRENT_TAB = "CurrentTab";
     private static final String BUNDLE_TAB_NAMES = "TabNames";
+    private static final String BUNDLE_TRANSITION_TABS = "TransitionTabs";
+    private static final String BUNDLE_TRANSITIONS = "Transitions";
+
+    // Keys of the previous Bundle format, kept to read old saved states
     private static final String BUNDLE_FRAGMENT_PREFIX = "FragmentInfo_";
     private static final String BUNDLE_STACKSIZE_POSTFIX = "_stackSize";
 
     /**
-     * Saves the TabStacker into a Bundle so that it can be retrieved later
+     * Saves the TabStacker into a Bundle so that it can be retrieved later.
+     * Each tab is saved as a single byte array, see StackData.
      * @param outState Bundle where to save the TabStacker
      */
     public void saveInstance(Bundle outState) {
-        Bundle bundle = new Bundle();
-        bundle.putString(BUNDLE_CURRENT_TAB, mCurrentTab);  // Current Tab
-
-        Set<String> keys = mStacks.keySet();
-        ArrayList<String> tabNames = new ArrayList<>(keys);
-        bundle.putStringArrayList(BUNDLE_TAB_NAMES, tabNames);  // Tab Names
-
-        for (String tabName : keys) {
-            Bundle stackBundle = new Bundle();
-            ArrayList<FragmentInfo> stack = mStacks.get(tabName);
-            String stackSizeKey = tabName + BUNDLE_STACKSIZE_POSTFIX;
-            stackBundle.putInt(stackSizeKey, stack.size());
-            int index = 0;
-            for(FragmentInfo fragmentInfo : stack) {
-                String fragmentInfoKey = BUNDLE_FRAGMENT_PREFIX + index;
-                ++index;
-                Bundle infoBundle = fragmentInfo.saveInstance();
-                stackBundle.putBundle(fragmentInfoKey, infoBundle);
-            }
-            bundle.putBundle(tabName, stackBundle);
-        }
+        flushCoalesced();
 
         // FIX
         // Do not remove the fragments from the stack as the system
@@ -485,7 +1798,201 @@ public class TabStacker {
 //            transaction.commitAllowingStateLoss();
 //        }
 
-        outState.putBundle(BUNDLE_TAB_STACKER, bundle);
+        long start = startOperation();
+        try {
+            Bundle bundle = saveState(mSpillStore != null, true);
+            outState.putBundle(BUNDLE_TAB_STACKER, bundle);
+            if (mMetrics != null) {
+                mMetrics.onSaved(mSavedBytes);
+            }
+            if (mSnapshotPending) {
+                writeSnapshot(bundle, mSavedSpillKeys);    // the same state, instead of saving it twice
+            }
+        } finally {
+            endOperation(TabStackerMetrics.Operation.SAVE_INSTANCE, start);
+        }
+    }
+
+    /**
+     * @param spill true to spill the biggest entries, see setSpillDirectory()
+     * @param live true to ask the instantiated Fragments for their current data, see FragmentInfo.saveInstance()
+     * @return the saved state of all the stacks
+     */
+    private Bundle saveState(boolean spill, boolean live) {
+        Bundle bundle = new Bundle();
+        bundle.putInt(BUNDLE_FORMAT_VERSION, StackData.FORMAT_VERSION);
+        bundle.putString(BUNDLE_CURRENT_TAB, getTabName(mCurrentTab));  // Current Tab
+
+        ArrayList<Integer> tabs = new ArrayList<>();
+        for (int tab = 0; tab < mStacks.size(); ++tab) {
+            if (hasStack(tab) && !mTabUsage.contains(tab)) {
+                tabs.add(tab);
+            }
+        }
+        for (int tab : mTabUsage) {      // keeps the order of use
+            if (hasStack(tab)) {
+                tabs.add(tab);
+            }
+        }
+        ArrayList<String> tabNames = new ArrayList<>();
+        for (int tab : tabs) {
+            tabNames.add(getTabName(tab));
+        }
+        bundle.putStringArrayList(BUNDLE_TAB_NAMES, tabNames);  // Tab Names
+
+        // Tab switches, the matrix uses the handles 0 to size - 1
+        bundle.putStringArrayList(BUNDLE_TRANSITION_TABS, new ArrayList<>(mTabNames.subList(0, mTransitions.size())));
+        bundle.putIntArray(BUNDLE_TRANSITIONS, mTransitions.toArray());
+
+        // Pending stacks reference the restored SharedTable, which is kept at the start of the new one
+        SharedTable sharedTable = ((mSharedTable != null) && hasPendingStacks()) ? new SharedTable(mSharedTable) : new SharedTable();
+        HashMap<String, ArrayList<byte[]>> tabEntries = new HashMap<>();
+        ArrayList<SavedEntry> savedEntries = new ArrayList<>();
+        int savedBytes = 0;
+        for (int tab : tabs) {
+            String tabName = getTabName(tab);
+            byte[] pendingData = mPendingStacks.get(tab);
+            if ((pendingData != null) && !spill) {
+                // Not restored yet: saved as it is
+                bundle.putByteArray(tabName, pendingData);
+                savedBytes += pendingData.length;
+                continue;
+            }
+            ArrayList<byte[]> entries;
+            if (pendingData != null) {
+                entries = StackData.unmarshall(pendingData);
+                for (int i = 0; i < entries.size(); ++i) {
+                    savedEntries.add(new SavedEntry(entries, i, FragmentInfo.getSpillKey(entries.get(i))));
+                    int argumentsIndex = FragmentInfo.getArgumentsIndex(entries.get(i));
+                    if (argumentsIndex >= 0) {
+                        sharedTable.retain(argumentsIndex);     // so that spill() can release them
+                    }
+                }
+            } else {
+                entries = new ArrayList<>();
+                for(FragmentInfo fragmentInfo : mStacks.get(tab)) {
+                    savedEntries.add(new SavedEntry(entries, entries.size(), fragmentInfo.getSpillKey()));
+                    entries.add(fragmentInfo.saveInstance(sharedTable, live));
+                }
+            }
+            tabEntries.put(tabName, entries);
+        }
+
+        if (spill) {
+            spill(savedEntries, sharedTable);
+        }
+        for (String tabName : tabEntries.keySet()) {
+            byte[] stackData = StackData.marshall(tabEntries.get(tabName));
+            bundle.putByteArray(tabName, stackData);
+            savedBytes += stackData.length;
+        }
+        savedBytes += sharedTable.saveInstance(bundle);
+        mSavedBytes = savedBytes;
+        return bundle;
+    }
+
+    /**
+     * An entry of a stack in the saved state
+     */
+    private static class SavedEntry {
+        ArrayList<byte[]> mEntries;
+        int mIndex;
+        String mSpillKey;   // null if the entry is not spilled
+
+        SavedEntry(ArrayList<byte[]> entries, int index, String spillKey) {
+            mEntries = entries;
+            mIndex = index;
+            mSpillKey = spillKey;
+        }
+
+        byte[] getData() {
+            return mEntries.get(mIndex);
+        }
+    }
+
+    /**
+     * Spills the biggest entries until the saved state is below mMaxSavedBytes,
+     * then their Arguments if the SharedTable keeps it above,
+     * and deletes the spilled files that are not referenced anymore.
+     * The spilled data referenced by the saved state are kept in mSavedSpillKeys.
+     */
+    private void spill(ArrayList<SavedEntry> savedEntries, final SharedTable sharedTable) {
+        int totalSize = sharedTable.getSize();
+        for (SavedEntry savedEntry : savedEntries) {
+            totalSize += savedEntry.getData().length;
+        }
+        if (totalSize > mMaxSavedBytes) {
+            Collections.sort(savedEntries, new Comparator<SavedEntry>() {
+                @Override
+                public int compare(SavedEntry entry1, SavedEntry entry2) {
+                    int size1 = entry1.getData().length;
+                    int size2 = entry2.getData().length;
+                    return (size1 < size2) ? 1 : ((size1 == size2) ? 0 : -1);
+                }
+            });
+            for (SavedEntry savedEntry : savedEntries) {
+                if (totalSize <= mMaxSavedBytes) {
+                    break;
+                }
+                if (savedEntry.mSpillKey != null) {
+                    continue;   // already spilled
+                }
+                totalSize = spill(savedEntry, sharedTable, false, totalSize);
+            }
+        }
+        if (totalSize > mMaxSavedBytes) {
+            Collections.sort(savedEntries, new Comparator<SavedEntry>() {
+                @Override
+                public int compare(SavedEntry entry1, SavedEntry entry2) {
+                    int size1 = getArgumentsSize(entry1, sharedTable);
+                    int size2 = getArgumentsSize(entry2, sharedTable);
+                    return (size1 < size2) ? 1 : ((size1 == size2) ? 0 : -1);
+                }
+            });
+            for (SavedEntry savedEntry : savedEntries) {
+                if ((totalSize <= mMaxSavedBytes) || (getArgumentsSize(savedEntry, sharedTable) == 0)) {
+                    break;
+                }
+                totalSize = spill(savedEntry, sharedTable, true, totalSize);
+            }
+        }
+        if (totalSize > mMaxSavedBytes) {
+            Log.w(TAG, "Saved state of " + totalSize + " bytes is above the limit of " + mMaxSavedBytes + " bytes");
+        }
+
+        HashSet<String> spillKeys = new HashSet<>();
+        for (SavedEntry savedEntry : savedEntries) {
+            if (savedEntry.mSpillKey != null) {
+                spillKeys.add(savedEntry.mSpillKey);
+            }
+        }
+        mSavedSpillKeys = new HashSet<>(spillKeys);
+        spillKeys.addAll(mSnapshotSpillKeys);   // the snapshot file may be restored instead of this state
+        mSpillStore.deleteAllExcept(spillKeys);
+    }
+
+    /**
+     * Spills an entry, and its Arguments if asked
+     * @return the new size of the saved state
+     */
+    private int spill(SavedEntry savedEntry, SharedTable sharedTable, boolean spillArguments, int totalSize) {
+        byte[] data = savedEntry.getData();
+        int tableSize = sharedTable.getSize();
+        byte[] spilledData = FragmentInfo.spill(data, mSpillStore, sharedTable, spillArguments);
+        if (spilledData == null) {
+            return totalSize;
+        }
+        savedEntry.mEntries.set(savedEntry.mIndex, spilledData);
+        savedEntry.mSpillKey = FragmentInfo.getSpillKey(spilledData);
+        return totalSize - (data.length - spilledData.length) - (tableSize - sharedTable.getSize());
+    }
+
+    /**
+     * @return the size of the Arguments of a saved entry in the SharedTable, 0 if it has none
+     */
+    private static int getArgumentsSize(SavedEntry savedEntry, SharedTable sharedTable) {
+        int argumentsIndex = FragmentInfo.getArgumentsIndex(savedEntry.getData());
+        return (argumentsIndex >= 0) ? sharedTable.getArgumentsSize(argumentsIndex) : 0;
     }
 
     /**
@@ -494,36 +2001,161 @@ public class TabStacker {
      * @param savedInstanceState Bundle with the saved TabStacker to restore
      */
     public void restoreInstance(Bundle savedInstanceState) {
-        if (savedInstanceState.containsKey(BUNDLE_TAB_STACKER)) {
-            Bundle bundle = savedInstanceState.getBundle(BUNDLE_TAB_STACKER);
-            if (bundle != null) {
-                mCurrentTab = bundle.getString(BUNDLE_CURRENT_TAB);
-                ArrayList<String> tabNames = bundle.getStringArrayList(BUNDLE_TAB_NAMES);
-                if (tabNames != null) {
-                    for (String tabName : tabNames) {
-                        ArrayList<FragmentInfo> stackInfos = mStacks.get(tabName);
-                        if (stackInfos == null) {
-                            stackInfos = new ArrayList<>();
-                            mStacks.put(tabName, stackInfos);
-                        } else {
-                            stackInfos.clear();
-                        }
-                        Bundle stackBundle = bundle.getBundle(tabName);
-                        String stackSizeKey = tabName + BUNDLE_STACKSIZE_POSTFIX;
-                        int stackSize = stackBundle.getInt(stackSizeKey);
-                        for (int i = 0; i < stackSize; ++i) {
-                            String fragmentInfoKey = BUNDLE_FRAGMENT_PREFIX + i;
-                            Bundle fragmentInfoBundle = stackBundle.getBundle(fragmentInfoKey);
-                            FragmentInfo fragmentInfo = FragmentInfo.restoreInstance(fragmentInfoBundle);
-                            stackInfos.add(fragmentInfo);
-                        }
+        restoreState(savedInstanceState.getBundle(BUNDLE_TAB_STACKER));
+    }
+
+    /**
+     * Restores the stacks from the snapshot written since setSnapshotFile(), instead of restoreInstance() after a cold start.
+     * Only the current tab is restored immediately, the other tabs when they are needed,
+     * and the Fragments when they become visible.
+     * @param file the file given to setSnapshotFile()
+     * @param appVersion the version given to setSnapshotFile()
+     * @return true if the snapshot has been restored, false if there is no valid snapshot
+     */
+    public boolean restoreFromSnapshot(@NonNull File file, int appVersion) {
+        Bundle bundle = new SnapshotFile(file, appVersion).read();
+        if (bundle == null) {
+            return false;
+        }
+        restoreState(bundle);
+        return true;
+    }
+
+    /**
+     * @param bundle a Bundle given by saveState(), or null to only restore the current tab
+     */
+    private void restoreState(Bundle bundle) {
+        long start = startOperation();
+        try {
+            doRestoreState(bundle);
+        } finally {
+            endOperation(TabStackerMetrics.Operation.RESTORE_INSTANCE, start);
+        }
+    }
+
+    private void doRestoreState(Bundle bundle) {
+        if (bundle != null) {
+            boolean legacy = !bundle.containsKey(BUNDLE_FORMAT_VERSION);
+            mCurrentTab = registerTab(bundle.getString(BUNDLE_CURRENT_TAB, ""));
+            mSharedTable = legacy ? null : SharedTable.restoreInstance(bundle);
+            ArrayList<String> tabNames = bundle.getStringArrayList(BUNDLE_TAB_NAMES);
+            if (tabNames != null) {
+                for (String tabName : tabNames) {
+                    int tab = registerTab(tabName);
+                    useTab(tab);    // saved from the least to the most recently used
+                    ArrayList<FragmentInfo> previousInfos = mStacks.set(tab, null);
+                    if (previousInfos != null) {
+                        setFragmentIndex(previousInfos, null);
                     }
+                    mPendingStacks.set(tab, null);
+                    if (legacy) {
+                        restoreLegacyStack(tab, bundle.getBundle(tabName));
+                        continue;
+                    }
+                    byte[] stackData = bundle.getByteArray(tabName);
+                    if (tab == mCurrentTab) {
+                        restoreStack(tab, stackData);
+                    } else {
+                        mPendingStacks.set(tab, stackData);   // restored when the tab is needed
+                    }
+                }
+            }
+            if (!hasPendingStacks()) {
+                mSharedTable = null;
+            }
+
+            ArrayList<String> transitionTabs = bundle.getStringArrayList(BUNDLE_TRANSITION_TABS);
+            int[] transitions = bundle.getIntArray(BUNDLE_TRANSITIONS);
+            if ((transitionTabs != null) && (transitions != null)) {
+                int[] tabs = new int[transitionTabs.size()];
+                for (int i = 0; i < tabs.length; ++i) {
+                    tabs[i] = registerTab(transitionTabs.get(i));
                 }
+                mTransitions.restore(tabs, transitions);
             }
         }
 
-        notifyAllRestored(mCurrentTab, PresentReason.RESTORING_STACK);
+        if (mSpillStore != null) {
+            for (String spillKey : getSpillKeys()) {
+                mSpillStore.adopt(spillKey);    // deleted by the next saves once they are not referenced anymore
+            }
+        }
+
+        removeRestoredFragments();
         pushAll(mCurrentTab);
+        commitTransaction();
+        notifyVisibleRestored(mCurrentTab, PresentReason.RESTORING_STACK);
+    }
+
+    /**
+     * Restores the stack of a tab from its saved bytes
+     * @return the restored stack
+     */
+    private ArrayList<FragmentInfo> restoreStack(int tab, byte[] stackData) {
+        ArrayList<FragmentInfo> stackInfos = new ArrayList<>();
+        for (byte[] entry : StackData.unmarshall(stackData)) {
+            stackInfos.add(FragmentInfo.restoreInstance(entry, mSpillStore, mSharedTable));
+        }
+        setFragmentIndex(stackInfos, mFragmentIndex);
+        mStacks.set(tab, stackInfos);
+        return stackInfos;
+    }
+
+    /**
+     * Restores the stack of a tab saved in a Bundle by the previous versions of TabStacker.
+     * The Fragments are not instantiated, so all the tabs are restored at once.
+     */
+    private void restoreLegacyStack(int tab, Bundle stackBundle) {
+        ArrayList<FragmentInfo> stackInfos = new ArrayList<>();
+        String stackSizeKey = getTabName(tab) + BUNDLE_STACKSIZE_POSTFIX;
+        int stackSize = stackBundle.getInt(stackSizeKey);
+        for (int i = 0; i < stackSize; ++i) {
+            String fragmentInfoKey = BUNDLE_FRAGMENT_PREFIX + i;
+            Bundle fragmentInfoBundle = stackBundle.getBundle(fragmentInfoKey);
+            FragmentInfo fragmentInfo = FragmentInfo.restoreInstance(fragmentInfoBundle, mSpillStore);
+            stackInfos.add(fragmentInfo);
+        }
+        setFragmentIndex(stackInfos, mFragmentIndex);
+        mStacks.set(tab, stackInfos);
+    }
+
+    private static void setFragmentIndex(ArrayList<FragmentInfo> infos, IdentityHashMap<Fragment, FragmentInfo> fragmentIndex) {
+        for (FragmentInfo fragmentInfo : infos) {
+            fragmentInfo.setFragmentIndex(fragmentIndex);
+        }
+    }
+
+    /**
+     * @return the stack of a tab, restored first if it is still pending since restoreInstance(). null if the tab has no stack
+     */
+    private ArrayList<FragmentInfo> getStack(int tab) {
+        ArrayList<FragmentInfo> infos = mStacks.get(tab);
+        if (infos == null) {
+            byte[] stackData = mPendingStacks.set(tab, null);
+            if (stackData != null) {
+                infos = restoreStack(tab, stackData);
+                if (!hasPendingStacks()) {
+                    mSharedTable = null;    // not needed anymore
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * @return true if the tab has a stack, restored or still pending
+     */
+    private boolean hasStack(int tab) {
+        return (mStacks.get(tab) != null) || (mPendingStacks.get(tab) != null);
+    }
+
+    private boolean hasPendingStacks() {
+        for (byte[] stackData : mPendingStacks) {
+            if (stackData != null) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -532,13 +2164,17 @@ public class TabStacker {
      * @param fragmentView View to restore
      */
     public void restoreView(Fragment fragment, View fragmentView) {
-        ArrayList<FragmentInfo> fragmentInfos = mStacks.get(mCurrentTab);
-        for(FragmentInfo fragmentInfo : fragmentInfos) {
-            if (fragmentInfo.mFragment == fragment) {
-                fragmentInfo.restoreView(fragmentView);
-                break;
-            }
+        FragmentInfo fragmentInfo = getFragmentInfo(fragment);
+        if (fragmentInfo != null) {
+            fragmentInfo.restoreView(fragmentView);
         }
     }
 
+    /**
+     * @return the FragmentInfo of a Fragment of any tab, or null if the Fragment is not in a stack
+     */
+    private FragmentInfo getFragmentInfo(Fragment fragment) {
+        return mFragmentIndex.get(fragment);
+    }
+
 }
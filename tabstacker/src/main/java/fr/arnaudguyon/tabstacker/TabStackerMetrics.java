@@ -0,0 +1,188 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Navigation metrics of a TabStacker, see TabStacker.setMetricsEnabled().
+ * This is a snapshot: it does not change when more operations are done.
+ */
+
+public class TabStackerMetrics {
+
+    public enum Operation {
+        SWITCH_TO_TAB,
+        ADD_FRAGMENT,
+        REPLACE_FRAGMENT,
+        POP,                // including onBackPressed() and popToTop()
+        SAVE_INSTANCE,
+        RESTORE_INSTANCE    // including restoreFromSnapshot()
+    }
+
+    /**
+     * Number of buckets of the latency histograms. Bucket i counts the operations which took less than 2^i ms
+     * (and more than the previous bucket), the last one counts all the longer operations.
+     */
+    public static final int HISTOGRAM_BUCKETS = 11;
+
+    private static final int NB_OPERATIONS = Operation.values().length;
+    static final long NOT_MEASURED = Long.MIN_VALUE;     // start time of an operation started while disabled
+
+    private final long[] mCounts = new long[NB_OPERATIONS];
+    private final long[] mTotalNanos = new long[NB_OPERATIONS];
+    private final long[] mMaxNanos = new long[NB_OPERATIONS];
+    private final long[] mCommits = new long[NB_OPERATIONS];
+    private final long[] mInstantiated = new long[NB_OPERATIONS];
+    private final long[][] mHistograms = new long[NB_OPERATIONS][HISTOGRAM_BUCKETS];
+    private int mLastSavedBytes;
+    private int mMaxSavedBytes;
+
+    private TabStackerMetrics() {
+    }
+
+    /**
+     * @return the upper bound of a histogram bucket in ms, Long.MAX_VALUE for the last bucket
+     */
+    public static long getBucketUpperBoundMs(int bucket) {
+        return (bucket < HISTOGRAM_BUCKETS - 1) ? (1L << bucket) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of times the operation has been done
+     */
+    public long getCount(@NonNull Operation operation) {
+        return mCounts[operation.ordinal()];
+    }
+
+    /**
+     * @return the wall time spent in the operation, in ns
+     */
+    public long getTotalTimeNanos(@NonNull Operation operation) {
+        return mTotalNanos[operation.ordinal()];
+    }
+
+    /**
+     * @return the longest time of a single operation, in ns
+     */
+    public long getMaxTimeNanos(@NonNull Operation operation) {
+        return mMaxNanos[operation.ordinal()];
+    }
+
+    /**
+     * @return the number of FragmentTransactions committed by the operation (0 when it was part of a batch)
+     */
+    public long getCommitCount(@NonNull Operation operation) {
+        return mCommits[operation.ordinal()];
+    }
+
+    /**
+     * @return the number of fragments the operation had to instantiate and restore from their saved state
+     */
+    public long getInstantiatedCount(@NonNull Operation operation) {
+        return mInstantiated[operation.ordinal()];
+    }
+
+    /**
+     * @return the number of operations in each bucket, see HISTOGRAM_BUCKETS
+     */
+    public long[] getHistogram(@NonNull Operation operation) {
+        return mHistograms[operation.ordinal()].clone();
+    }
+
+    /**
+     * @return the size of the state saved by the last saveInstance(), in bytes (the saved byte arrays, without
+     * the keys of the Bundle)
+     */
+    public int getLastSavedBytes() {
+        return mLastSavedBytes;
+    }
+
+    /**
+     * @return the biggest state saved by saveInstance(), in bytes
+     */
+    public int getMaxSavedBytes() {
+        return mMaxSavedBytes;
+    }
+
+    /**
+     * Collects the metrics, only created when they are enabled
+     */
+    static class Recorder {
+
+        private final TabStackerMetrics mMetrics = new TabStackerMetrics();
+        private long mCommits;
+        private long mInstantiated;
+        private long mCommitsAtStart;
+        private long mInstantiatedAtStart;
+
+        /**
+         * Starts an outer operation, the TabStacker does not measure the nested ones
+         * @return the start time, to give to end()
+         */
+        long start() {
+            mCommitsAtStart = mCommits;
+            mInstantiatedAtStart = mInstantiated;
+            return System.nanoTime();
+        }
+
+        void end(Operation operation, long startNanos) {
+            long nanos = System.nanoTime() - startNanos;
+            int index = operation.ordinal();
+            TabStackerMetrics metrics = mMetrics;
+            ++metrics.mCounts[index];
+            metrics.mTotalNanos[index] += nanos;
+            metrics.mMaxNanos[index] = Math.max(metrics.mMaxNanos[index], nanos);
+            metrics.mCommits[index] += mCommits - mCommitsAtStart;
+            metrics.mInstantiated[index] += mInstantiated - mInstantiatedAtStart;
+            long ms = nanos / 1000000;
+            int bucket = 0;
+            while ((bucket < HISTOGRAM_BUCKETS - 1) && (ms >= getBucketUpperBoundMs(bucket))) {
+                ++bucket;
+            }
+            ++metrics.mHistograms[index][bucket];
+        }
+
+        void onCommit() {
+            ++mCommits;
+        }
+
+        void onInstantiated() {
+            ++mInstantiated;
+        }
+
+        void onSaved(int bytes) {
+            mMetrics.mLastSavedBytes = bytes;
+            mMetrics.mMaxSavedBytes = Math.max(mMetrics.mMaxSavedBytes, bytes);
+        }
+
+        TabStackerMetrics snapshot() {
+            TabStackerMetrics metrics = new TabStackerMetrics();
+            for (int i = 0; i < NB_OPERATIONS; ++i) {
+                metrics.mCounts[i] = mMetrics.mCounts[i];
+                metrics.mTotalNanos[i] = mMetrics.mTotalNanos[i];
+                metrics.mMaxNanos[i] = mMetrics.mMaxNanos[i];
+                metrics.mCommits[i] = mMetrics.mCommits[i];
+                metrics.mInstantiated[i] = mMetrics.mInstantiated[i];
+                System.arraycopy(mMetrics.mHistograms[i], 0, metrics.mHistograms[i], 0, HISTOGRAM_BUCKETS);
+            }
+            metrics.mLastSavedBytes = mMetrics.mLastSavedBytes;
+            metrics.mMaxSavedBytes = mMetrics.mMaxSavedBytes;
+            return metrics;
+        }
+    }
+
+}
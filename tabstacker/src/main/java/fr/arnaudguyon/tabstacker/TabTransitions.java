@@ -0,0 +1,121 @@
+/*
+    Copyright 2016 Arnaud Guyon
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+package fr.arnaudguyon.tabstacker;
+
+import java.util.Arrays;
+
+/**
+ * Counts the switches from each tab to each other tab (a Markov transition matrix), to predict the next tab
+ */
+
+class TabTransitions {
+
+    private static final int MAX_COUNT = 1 << 16;  // above, the counts of the tab are halved so that recent habits weigh more
+
+    private int[][] mCounts = new int[0][0];        // [from tab][to tab]
+
+    void record(int fromTab, int toTab) {
+        ensureSize(Math.max(fromTab, toTab) + 1);
+        int[] counts = mCounts[fromTab];
+        if (++counts[toTab] >= MAX_COUNT) {
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] >>= 1;
+            }
+        }
+    }
+
+    /**
+     * @param fromTab the current tab
+     * @param maxTabs the maximum number of tabs to return
+     * @return the tabs which were used after fromTab, the most likely first
+     */
+    int[] getMostLikely(int fromTab, int maxTabs) {
+        int[] counts = (fromTab < mCounts.length) ? mCounts[fromTab].clone() : new int[0];
+        if (fromTab < counts.length) {
+            counts[fromTab] = 0;
+        }
+        int[] tabs = new int[Math.min(maxTabs, counts.length)];
+        int found = 0;
+        while (found < tabs.length) {
+            int best = -1;
+            for (int tab = 0; tab < counts.length; ++tab) {
+                if ((counts[tab] > 0) && ((best < 0) || (counts[tab] > counts[best]))) {
+                    best = tab;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            tabs[found++] = best;
+            counts[best] = 0;
+        }
+        return Arrays.copyOf(tabs, found);
+    }
+
+    /**
+     * @return the number of tabs in the matrix, which are the tabs 0 to size - 1
+     */
+    int size() {
+        return mCounts.length;
+    }
+
+    /**
+     * @return the counts of the size() x size() matrix, row by row
+     */
+    int[] toArray() {
+        int size = mCounts.length;
+        int[] array = new int[size * size];
+        for (int from = 0; from < size; ++from) {
+            System.arraycopy(mCounts[from], 0, array, from * size, size);
+        }
+        return array;
+    }
+
+    /**
+     * Sets the counts saved by toArray(), with tabs which may have other handles now
+     * @param tabs the current handles of the saved tabs 0 to size - 1
+     * @param array the saved counts
+     */
+    void restore(int[] tabs, int[] array) {
+        int size = tabs.length;
+        if (array.length != size * size) {
+            return;
+        }
+        int maxTab = -1;
+        for (int tab : tabs) {
+            maxTab = Math.max(maxTab, tab);
+        }
+        mCounts = new int[0][0];
+        ensureSize(maxTab + 1);
+        for (int from = 0; from < size; ++from) {
+            for (int to = 0; to < size; ++to) {
+                mCounts[tabs[from]][tabs[to]] = array[from * size + to];
+            }
+        }
+    }
+
+    private void ensureSize(int size) {
+        if (size <= mCounts.length) {
+            return;
+        }
+        int[][] counts = new int[size][size];
+        for (int from = 0; from < mCounts.length; ++from) {
+            System.arraycopy(mCounts[from], 0, counts[from], 0, mCounts.length);
+        }
+        mCounts = counts;
+    }
+
+}
@@ -16,6 +16,7 @@
 package fr.arnaudguyon.tabstacker;
 
 import android.os.Bundle;
+import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.util.SparseArray;
@@ -27,28 +28,57 @@ import android.view.View;
 
 class ViewData {
 
-    static Bundle saveViewHierarchy(@NonNull View view) {
-
-        Bundle bundle = new Bundle();
+    static SparseArray<Parcelable> saveViewHierarchy(@NonNull View view) {
         SparseArray<Parcelable> savedViewHierarchy = new SparseArray<>();
-
         view.saveHierarchyState(savedViewHierarchy);
+        return savedViewHierarchy;
+    }
 
+    static void restoreView(SparseArray<Parcelable> savedViewHierarchy, @NonNull View view) {
+        if (savedViewHierarchy != null) {
+            view.restoreHierarchyState(savedViewHierarchy);
+        }
+    }
+
+    /**
+     * Writes a View Hierarchy with its native int view ids
+     */
+    static void writeToParcel(SparseArray<Parcelable> savedViewHierarchy, Parcel parcel) {
+        if (savedViewHierarchy == null) {
+            parcel.writeInt(-1);
+            return;
+        }
         int count = savedViewHierarchy.size();
+        parcel.writeInt(count);
         for(int i=0; i<count; ++i) {
-            int key = savedViewHierarchy.keyAt(i);
-            Parcelable parcelable = savedViewHierarchy.get(key);
-            String bundleKey = "" + key;
-            bundle.putParcelable(bundleKey, parcelable);
+            parcel.writeInt(savedViewHierarchy.keyAt(i));
+            parcel.writeParcelable(savedViewHierarchy.valueAt(i), 0);
         }
+    }
 
-        return bundle;
+    /**
+     * Reads a View Hierarchy written by writeToParcel()
+     */
+    static SparseArray<Parcelable> readFromParcel(Parcel parcel, ClassLoader classLoader) {
+        int count = parcel.readInt();
+        if (count < 0) {
+            return null;
+        }
+        SparseArray<Parcelable> savedViewHierarchy = new SparseArray<>(count);
+        for(int i=0; i<count; ++i) {
+            int key = parcel.readInt();
+            savedViewHierarchy.append(key, parcel.readParcelable(classLoader));
+        }
+        return savedViewHierarchy;
     }
 
-    static void restoreView(Bundle bundle, @NonNull View view) {
+    /**
+     * Reads a View Hierarchy saved in a Bundle with String keys, by the previous versions of TabStacker
+     */
+    static SparseArray<Parcelable> fromBundle(Bundle bundle) {
 
         if (bundle == null) {
-            return;
+            return null;
         }
 
         SparseArray<Parcelable> savedViewHierarchy = new SparseArray<>();
@@ -59,7 +89,7 @@ class ViewData {
             savedViewHierarchy.put(key, parcelable);
         }
 
-        view.restoreHierarchyState(savedViewHierarchy);
+        return savedViewHierarchy;
     }
 
 }